@@ -0,0 +1,169 @@
+package simpledb;
+
+/**
+ * BatchFilter is the batch-at-a-time version of {@link Filter}. It applies a
+ * {@link Predicate} to each batch from its child by rewriting the batch's
+ * selection vector; column data is never copied. Integer comparisons are
+ * evaluated in branch-free loops over the column vector so that the JIT can
+ * unroll and vectorize them.
+ */
+public class BatchFilter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Predicate pred;
+    private BatchIterator child;
+
+    /**
+     * Constructor accepts a predicate to apply and a child iterator to read
+     * batches to filter from.
+     *
+     * @param p
+     *            The predicate to filter rows with
+     * @param child
+     *            The child iterator
+     */
+    public BatchFilter(Predicate p, BatchIterator child) {
+        this.pred = p;
+        this.child = child;
+    }
+
+    public Predicate getPredicate() {
+        return pred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    /**
+     * Returns the next batch from the child that has at least one row
+     * satisfying the predicate, with its selection vector restricted to those
+     * rows.
+     */
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        TupleBatch b;
+        while ((b = child.nextBatch()) != null) {
+            int n;
+            if (getTupleDesc().getFieldType(pred.getField()) == Type.INT_TYPE)
+                n = filterInts(b, pred.getOp(),
+                        ((IntField) pred.getOperand()).getValue());
+            else
+                n = filterStrings(b, pred.getOp(), pred.getOperand().toString());
+            b.setNumSelected(n);
+            if (n > 0)
+                return b;
+        }
+        return null;
+    }
+
+    /**
+     * Restrict the selection vector of b to the rows whose integer column
+     * compares true against v. The switch is hoisted out of the loops so
+     * that each loop body is a single compare and add.
+     *
+     * @return the number of selected rows
+     */
+    private int filterInts(TupleBatch b, Predicate.Op op, int v) {
+        int[] col = b.getIntColumn(pred.getField());
+        int[] sel = b.getSelection();
+        int out = 0;
+
+        if (b.isDense()) {
+            int n = b.size();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int r = 0; r < n; r++) { sel[out] = r; out += col[r] == v ? 1 : 0; }
+                break;
+            case NOT_EQUALS:
+                for (int r = 0; r < n; r++) { sel[out] = r; out += col[r] != v ? 1 : 0; }
+                break;
+            case GREATER_THAN:
+                for (int r = 0; r < n; r++) { sel[out] = r; out += col[r] > v ? 1 : 0; }
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int r = 0; r < n; r++) { sel[out] = r; out += col[r] >= v ? 1 : 0; }
+                break;
+            case LESS_THAN:
+                for (int r = 0; r < n; r++) { sel[out] = r; out += col[r] < v ? 1 : 0; }
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int r = 0; r < n; r++) { sel[out] = r; out += col[r] <= v ? 1 : 0; }
+                break;
+            }
+            return out;
+        }
+
+        int n = b.numSelected();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            for (int i = 0; i < n; i++) { int r = sel[i]; sel[out] = r; out += col[r] == v ? 1 : 0; }
+            break;
+        case NOT_EQUALS:
+            for (int i = 0; i < n; i++) { int r = sel[i]; sel[out] = r; out += col[r] != v ? 1 : 0; }
+            break;
+        case GREATER_THAN:
+            for (int i = 0; i < n; i++) { int r = sel[i]; sel[out] = r; out += col[r] > v ? 1 : 0; }
+            break;
+        case GREATER_THAN_OR_EQ:
+            for (int i = 0; i < n; i++) { int r = sel[i]; sel[out] = r; out += col[r] >= v ? 1 : 0; }
+            break;
+        case LESS_THAN:
+            for (int i = 0; i < n; i++) { int r = sel[i]; sel[out] = r; out += col[r] < v ? 1 : 0; }
+            break;
+        case LESS_THAN_OR_EQ:
+            for (int i = 0; i < n; i++) { int r = sel[i]; sel[out] = r; out += col[r] <= v ? 1 : 0; }
+            break;
+        }
+        return out;
+    }
+
+    /**
+     * Restrict the selection vector of b to the rows whose string column
+     * compares true against v, with the same semantics as
+     * {@link StringField#compare}.
+     *
+     * @return the number of selected rows
+     */
+    private int filterStrings(TupleBatch b, Predicate.Op op, String v) {
+        String[] col = b.getStringColumn(pred.getField());
+        int[] sel = b.getSelection();
+        int n = b.numSelected();
+        int out = 0;
+        for (int i = 0; i < n; i++) {
+            int r = sel[i];
+            boolean keep;
+            if (op == Predicate.Op.LIKE) {
+                keep = col[r].indexOf(v) >= 0;
+            } else {
+                int c = col[r].compareTo(v);
+                switch (op) {
+                case EQUALS: keep = c == 0; break;
+                case NOT_EQUALS: keep = c != 0; break;
+                case GREATER_THAN: keep = c > 0; break;
+                case GREATER_THAN_OR_EQ: keep = c >= 0; break;
+                case LESS_THAN: keep = c < 0; break;
+                default: keep = c <= 0; break;
+                }
+            }
+            if (keep)
+                sel[out++] = r;
+        }
+        return out;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * BatchIterator is the batch-at-a-time counterpart of {@link DbIterator}.
+ * Instead of returning one {@link Tuple} per call, it returns a
+ * {@link TupleBatch} of up to {@link TupleBatch#BATCH_SIZE} rows stored as
+ * column vectors, so that operators can evaluate predicates and projections
+ * in tight loops over primitive arrays.
+ * <p>
+ * Use {@link TupleToBatchIterator} and {@link BatchToTupleIterator} to
+ * connect batch operators with tuple-at-a-time operators.
+ */
+public interface BatchIterator extends Serializable {
+    /**
+     * Opens the iterator. This must be called before any of the other methods.
+     * @throws DbException when there are problems opening/accessing the database.
+     */
+    public void open() throws DbException, TransactionAbortedException;
+
+    /**
+     * Returns the next batch of rows. The returned batch (and the arrays it
+     * exposes) is only valid until the next call to nextBatch, rewind or
+     * close; callers that need to keep rows must copy them.
+     *
+     * @return the next batch with at least one selected row, or null if the
+     *         iteration is finished.
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+    /**
+     * Resets the iterator to the start.
+     * @throws DbException when rewind is unsupported.
+     */
+    public void rewind() throws DbException, TransactionAbortedException;
+
+    /**
+     * @return the TupleDesc of the batches returned by this iterator.
+     */
+    public TupleDesc getTupleDesc();
+
+    /**
+     * Closes the iterator.
+     */
+    public void close();
+}
@@ -0,0 +1,65 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+/**
+ * BatchProject is the batch-at-a-time version of {@link Project}. Projection
+ * of a batch only rearranges references to its column vectors, so no row data
+ * is copied.
+ */
+public class BatchProject implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private final int[] outFieldIds;
+    private final TupleDesc td;
+
+    /**
+     * Constructor accepts a child iterator to read batches from and a list of
+     * fields in the output batches.
+     *
+     * @param fieldList
+     *            The ids of the fields in child's tupleDesc to project out
+     * @param types
+     *            the types of the fields in the final projection
+     * @param child
+     *            The child iterator
+     */
+    public BatchProject(ArrayList<Integer> fieldList, Type[] types,
+            BatchIterator child) {
+        this.child = child;
+        this.outFieldIds = new int[fieldList.size()];
+        String[] fieldAr = new String[fieldList.size()];
+        TupleDesc childtd = child.getTupleDesc();
+        for (int i = 0; i < outFieldIds.length; i++) {
+            outFieldIds[i] = fieldList.get(i);
+            fieldAr[i] = childtd.getFieldName(outFieldIds[i]);
+        }
+        td = new TupleDesc(types, fieldAr);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        TupleBatch b = child.nextBatch();
+        if (b == null)
+            return null;
+        return b.project(outFieldIds, td);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,71 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Adapter that exposes a {@link BatchIterator} as a tuple-at-a-time
+ * {@link DbIterator}, so that batch pipelines can feed existing operators
+ * such as {@link Join} or {@link Aggregate}. Tuples are only materialized for
+ * rows that survive the batch operators below this adapter.
+ */
+public class BatchToTupleIterator implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private transient TupleBatch batch = null;
+    private transient int pos = 0;
+    private boolean open = false;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the batch iterator to read rows from
+     */
+    public BatchToTupleIterator(BatchIterator child) {
+        this.child = child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = null;
+        pos = 0;
+        open = true;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!open)
+            throw new IllegalStateException("Iterator not yet open");
+        while (batch == null || pos >= batch.numSelected()) {
+            batch = child.nextBatch();
+            pos = 0;
+            if (batch == null)
+                return false;
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch.getTuple(pos++);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+        pos = 0;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+        batch = null;
+        open = false;
+    }
+}
@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A Bloom filter over field values. {@link HashEquiJoin} builds one over the
+ * join keys of the tuples in its hash table and pushes it into the scan on
+ * the probe side, which then drops tuples whose key cannot have a match.
+ * <p>
+ * mightContain never returns false for a value that was added; it returns
+ * true for a value that was not added with probability of about 1% at
+ * {@link #BITS_PER_KEY} bits per key.
+ */
+public class BloomFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Bits of filter per expected key. */
+    public static final int BITS_PER_KEY = 10;
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+
+    /**
+     * Create an empty filter sized for the given number of keys.
+     *
+     * @param expectedKeys the number of distinct values that will be added
+     */
+    public BloomFilter(int expectedKeys) {
+        int words = Math.max(1, (int) (((long) expectedKeys * BITS_PER_KEY + 63) / 64));
+        this.bits = new long[words];
+        this.numBits = words * 64;
+        // optimal k = (m/n) ln 2
+        this.numHashes = Math.max(1, (int) Math.round(BITS_PER_KEY * Math.log(2)));
+    }
+
+    /** Spread the bits of a field's hash code over 64 bits (murmur3 fmix64). */
+    private static long mix(Field f) {
+        long h = f.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Add a value to this filter.
+     */
+    public void add(Field f) {
+        long h = mix(f);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if f was definitely not added to this filter, true if it
+     *         may have been
+     */
+    public boolean mightContain(Field f) {
+        long h = mix(f);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -2,11 +2,18 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -27,10 +34,53 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** How often the page cleaner runs, and how many pages it writes each
+    time it does. */
+    static final long CLEANER_INTERVAL_MILLIS = 100;
+    static final int CLEANER_BATCH = 16;
+    /** How long fetching a page waits for the page cleaner to make room in
+    a full buffer pool before it gives up. */
+    static final long EVICT_WAIT_MILLIS = 1000;
     
     private int maxPages;
     // using a concurrenthashmap because it was imported for us... xD
     private ConcurrentHashMap <PageId, Page> pool;
+    private final LockManager lockManager = new LockManager();
+    private final VersionStore versions = new VersionStore();
+    private volatile boolean rowLocking = false;
+
+    /**
+     * A change a transaction made to a tuple it holds a tuple lock on, which
+     * is undone in place if it aborts: its pages may hold other
+     * transactions' changes too, so they cannot be discarded.
+     */
+    private static class TupleChange {
+        final RecordId rid;
+        /** the tuple deleted from rid, or null if rid was inserted */
+        final Tuple deleted;
+
+        TupleChange(RecordId rid, Tuple deleted) {
+            this.rid = rid;
+            this.deleted = deleted;
+        }
+    }
+
+    private final ConcurrentHashMap<TransactionId, List<TupleChange>> tupleChanges =
+            new ConcurrentHashMap<TransactionId, List<TupleChange>>();
+
+    /**
+     * The dirty page table: the dirty pages, each with the log sequence
+     * number of the end of the log when it was dirtied, before which no
+     * record of its changes can be.
+     */
+    private final ConcurrentHashMap<PageId, Long> dirtyPages =
+            new ConcurrentHashMap<PageId, Long>();
+    private final AtomicBoolean cleaning = new AtomicBoolean();
+    // the page cleaner waits on this between passes, and notifies it
+    // after each; fetchPage wakes it up when no page can be evicted
+    private final Object cleaned = new Object();
+    private volatile boolean starved = false;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -83,20 +133,159 @@ public class BufferPool {
 //		}
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        	Page p;
-            synchronized(this) {
-                p = pool.get(pid);
-                if (p == null) {
-                    if (pool.size() >= maxPages) {
-                        this.evictPage();
-                    }
-                    p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                    pool.put(pid, p);
-                }
-            }
-            return p;
+            // lock first, outside the monitor, so that waiting for a lock
+            // does not keep other transactions out of the buffer pool
+            lockManager.acquire(tid, pid.getTableId(), LockManager.Mode.intention(perm));
+            lockManager.acquire(tid, pid, LockManager.Mode.of(perm));
+            return fetchPage(pid);
+        }
+
+    /**
+     * Retrieve a page whose tuples the transaction locks one at a time
+     * with {@link #lockTuple}. Only an intention lock is taken on the page,
+     * so other transactions can work on its other tuples at the same time;
+     * callers must synchronize on the page while they read or modify it.
+     *
+     * @see #setRowLocking
+     */
+    public Page getPageForTuples(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+            LockManager.Mode mode = LockManager.Mode.intention(perm);
+            lockManager.acquire(tid, pid.getTableId(), mode);
+            lockManager.acquire(tid, pid, mode);
+            return fetchPage(pid);
+        }
+
+    /**
+     * Retrieve a page for a snapshot transaction, without taking any lock.
+     * Callers must synchronize on the page while they read it, and read
+     * the versions of its tuples the snapshot sees from
+     * {@link #getVersionStore}.
+     *
+     * @throws DbException if tid is not a snapshot transaction
+     * @see #beginSnapshot
+     */
+    public Page getPageForSnapshot(TransactionId tid, PageId pid)
+            throws DbException {
+        if (versions.snapshot(tid) == null)
+            throw new DbException("transaction " + tid.getId() + " is not a snapshot");
+        return fetchPage(pid);
+    }
+
+    /**
+     * Make a transaction a read-only snapshot: HeapFiles show it the
+     * database as of now, and it takes no locks, so it neither waits for
+     * writers nor holds them up. It may not modify the database.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /** @return true if the transaction is a snapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.snapshot(tid) != null;
+    }
+
+    /** @return the versions of the tuples snapshots may read */
+    VersionStore getVersionStore() {
+        return versions;
+    }
+
+    private Page fetchPage(PageId pid) throws DbException {
+        	long deadline = System.currentTimeMillis() + EVICT_WAIT_MILLIS;
+        	while (true) {
+        		synchronized(this) {
+        			Page p = pool.get(pid);
+        			if (p != null)
+        				return p;
+        			if (pool.size() < maxPages || this.evictPage()) {
+        				p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        				pool.put(pid, p);
+        				return p;
+        			}
+        		}
+        		// outside the monitor, so that the cleaner and the other
+        		// transactions are not held up while we wait
+        		awaitCleaner(deadline);
+        	}
         }
     
+    /**
+     * @return the cached copy of a page, or null if it is not in the buffer
+     *         pool. No lock is acquired.
+     */
+    Page peekPage(PageId pid) {
+        return pool.get(pid);
+    }
+
+    /**
+     * Lock a tuple of a page retrieved with {@link #getPageForTuples}.
+     * May block if the lock is held by another transaction.
+     *
+     * @param perm READ_ONLY to read the tuple, READ_WRITE to modify it
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        lockManager.acquire(tid, rid, LockManager.Mode.of(perm));
+    }
+
+    /**
+     * Lock a tuple like {@link #lockTuple}, unless that requires waiting.
+     *
+     * @return true if the lock was acquired
+     */
+    public boolean tryLockTuple(TransactionId tid, RecordId rid, Permissions perm) {
+        return lockManager.tryAcquire(tid, rid, LockManager.Mode.of(perm));
+    }
+
+    /**
+     * @return true if some transaction holds a write lock or intention on
+     *         the page
+     */
+    public boolean isPageWriteLocked(PageId pid) {
+        return lockManager.isWriteLocked(pid);
+    }
+
+    /** @return true if some transaction holds a write lock on the tuple */
+    public boolean isTupleWriteLocked(RecordId rid) {
+        return lockManager.isWriteLocked(rid);
+    }
+
+    /**
+     * Lock a page retrieved with {@link #getPageForTuples} as a whole,
+     * unless that requires waiting, so that its tuples need not be locked
+     * one at a time.
+     *
+     * @return true if the lock was acquired
+     */
+    public boolean tryLockPage(TransactionId tid, PageId pid, Permissions perm) {
+        return lockManager.tryAcquire(tid, pid, LockManager.Mode.of(perm));
+    }
+
+    /**
+     * Lock a whole table, so that the transaction need not lock its pages
+     * one at a time. May block if the lock is held by another transaction.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        lockManager.acquire(tid, tableId, LockManager.Mode.of(perm));
+    }
+
+    /**
+     * Choose whether HeapFiles lock single tuples, under intention locks on
+     * their pages, rather than whole pages. This lets transactions update
+     * different tuples on the same page concurrently. Should be set while
+     * no transactions are running.
+     */
+    public void setRowLocking(boolean rowLocking) {
+        this.rowLocking = rowLocking;
+    }
+
+    /** @return true if HeapFiles lock single tuples */
+    public boolean isRowLocking() {
+        return rowLocking;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -107,8 +296,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -117,28 +305,160 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On commit the pages the transaction dirtied stay in the buffer pool
+     * (NO FORCE): their changes are in the log, put there by
+     * {@link #logPages} ahead of the commit record, and the page cleaner
+     * writes them out later. On abort its pages are put back with
+     * {@link #rollbackPages}, and changes made under tuple locks are
+     * undone in place.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        List<TupleChange> changes = tupleChanges.remove(tid);
+        try {
+            if (versions.snapshot(tid) != null) {
+                versions.end(tid);
+            } else if (commit) {
+                for (Object r : lockManager.locked(tid)) {
+                    if (!(r instanceof PageId))
+                        continue;
+                    LockManager.Mode m = lockManager.lockMode(tid, r);
+                    Page p = pool.get(r);
+                    if (p == null || m == null || !m.isWrite())
+                        continue;
+                    // the pages as tid left them are what later aborts
+                    // return to, less the changes of transactions still
+                    // holding tuple locks on them
+                    synchronized (p) {
+                        Page image = committedImage(tid, p, changes);
+                        if (image == p)
+                            p.setBeforeImage();
+                        else if (image != null)
+                            ((HeapPage) p).setBeforeImage(image.getPageData());
+                    }
+                }
+                versions.commit(tid);
+            } else {
+                if (changes != null)
+                    undo(tid, changes);
+                rollbackPages(tid);
+                versions.abort(tid);
+            }
+        } finally {
+            lockManager.releaseAll(tid);
+        }
+    }
+
+    /**
+     * Put the pages an aborting transaction holds exclusive locks on back
+     * to their before images, the pages as the last transaction to commit
+     * left them. Since those changes may not be on disk yet (NO FORCE), the
+     * before image replaces the page in the buffer pool, and is written out
+     * in turn, also over the changes the page cleaner wrote out while the
+     * transaction held the page (STEAL). Must be called before
+     * {@link LogFile#logAbort} rolls those back from the log, so that the
+     * cleaner does not write them out again after the rollback.
+     */
+    public void rollbackPages(TransactionId tid) {
+        for (Object r : lockManager.locked(tid)) {
+            if (!(r instanceof PageId)
+                    || lockManager.lockMode(tid, r) != LockManager.Mode.X)
+                continue;
+            Page p = pool.get(r);
+            if (p == null)
+                continue;
+            // latched, so that snapshots reading the page see it go before
+            // its versions do
+            synchronized (p) {
+                Page before = p.getBeforeImage();
+                if (Arrays.equals(before.getPageData(), p.getPageData()))
+                    continue;
+                before.markDirty(true, tid);
+                pool.replace((PageId) r, p, before);
+            }
+            pageDirtied((PageId) r);
+        }
+    }
+
+    /**
+     * Undo changes made under tuple locks, latest first. Each slot is set
+     * to what it held before the change whatever it holds now, since
+     * {@link LogFile#rollback} has already undone the changes the page
+     * cleaner logged when it wrote the page out.
+     */
+    private void undo(TransactionId tid, List<TupleChange> changes)
+            throws IOException {
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            TupleChange c = changes.get(i);
+            // pages a transaction has a write intention on are not evicted,
+            // so a page that is gone was put back on disk from the log
+            HeapPage p = (HeapPage) pool.get(c.rid.getPageId());
+            if (p == null)
+                continue;
+            int slot = c.rid.tupleno();
+            synchronized (p) {
+                try {
+                    if (p.isSlotUsed(slot))
+                        p.clearSlot(slot);
+                    if (c.deleted != null)
+                        p.insertTuple(c.deleted, slot);
+                } catch (DbException e) {
+                    throw new IOException("cannot undo change to " + c.rid, e);
+                }
+                p.markDirty(true, tid);
+            }
+            pageDirtied(p.getId());
+        }
+    }
+
+    /**
+     * Undo a logged change to a page in the buffer pool in place, so that
+     * the changes other transactions made to the page, which may not be on
+     * disk yet, are kept.
+     *
+     * @return false if the page is not in the buffer pool
+     * @see LogFile#rollback
+     */
+    boolean undoLogged(TransactionId tid, HeapPageDelta d) throws IOException {
+        HeapPage p = (HeapPage) pool.get(d.getId());
+        if (p == null)
+            return false;
+        synchronized (p) {
+            try {
+                d.undo(p);
+            } catch (DbException e) {
+                throw new IOException("cannot undo change to " + d.getId(), e);
+            }
+            p.markDirty(true, tid);
+        }
+        pageDirtied(p.getId());
+        return true;
+    }
+
+    private void tupleChanged(TransactionId tid, RecordId rid, Tuple deleted) {
+        if (lockManager.lockMode(tid, rid) != LockManager.Mode.X)
+            return; // the whole page is locked and gets discarded on abort
+        List<TupleChange> changes = tupleChanges.get(tid);
+        if (changes == null) {
+            changes = new ArrayList<TupleChange>();
+            tupleChanges.put(tid, changes);
+        }
+        changes.add(new TupleChange(rid, deleted));
     }
 
     /**
@@ -159,8 +479,10 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // add a tuple to the specified table on behalf of transaction id
     	
+    	if (isSnapshot(tid))
+    		throw new DbException("snapshot transactions are read-only");
     	// To add a tuple to a table, we have to find the file
-    	HeapFile desiredFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+    	DbFile desiredFile = Database.getCatalog().getDatabaseFile(tableId);
     	// heapfile insert returns an arraylist of changed pages
     	ArrayList<Page> desiredPages = desiredFile.insertTuple(tid, t);
     	
@@ -174,7 +496,10 @@ public class BufferPool {
         	// update cached versions of any pages that have been dirtied
         	// --> meaning update the buffer pool
     		pool.put(desiredPage.getId(), desiredPage);
+    		pageDirtied(desiredPage.getId());
     	}
+    	tupleChanged(tid, t.getRecordId(), null);
+    	TableStats.tupleInserted(tableId, t);
     }
 
     /**
@@ -194,9 +519,12 @@ public class BufferPool {
         // remove tuple from buffer pool
     	
     	// to find the file, we have to find the table id from the tuple
-    	int tableId = t.getRecordId().getPageId().getTableId();
+    	RecordId rid = t.getRecordId();
+    	int tableId = rid.getPageId().getTableId();
+    	if (isSnapshot(tid))
+    		throw new DbException("snapshot transactions are read-only");
     	// To add a tuple to a table, we have to find the file
-    	HeapFile desiredFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+    	DbFile desiredFile = Database.getCatalog().getDatabaseFile(tableId);
     	// heapfile insert returns an arraylist of changed pages
     	ArrayList<Page> desiredPages = desiredFile.deleteTuple(tid, t);
     	
@@ -212,14 +540,18 @@ public class BufferPool {
 //    		pool.put(desiredPage.getId(), desiredPage);
 //    	}
     	
-    	HeapPage desiredPage = (HeapPage) desiredPages.get(0);
+    	Page desiredPage = desiredPages.get(0);
     	desiredPage.markDirty(true, tid);
+    	pageDirtied(desiredPage.getId());
+    	tupleChanged(tid, rid, t);
+    	TableStats.tupleDeleted(tableId, t);
     }
 
     /**
      * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * NB: This writes out uncommitted changes too, which is safe since each
+     *     page is logged before it is written (STEAL): aborts and recovery
+     *     undo the changes from the log.
      */
     public synchronized void flushAllPages() throws IOException {
         // we have a function called flush page
@@ -241,8 +573,8 @@ public class BufferPool {
         cache.
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // only necessary for lab5
+        pool.remove(pid);
+        dirtyPages.remove(pid);
     }
 
     /**
@@ -253,43 +585,318 @@ public class BufferPool {
         // write dirty page to disk
     	Page currentPage = this.pool.get(pid);
     	
-    	if (currentPage.isDirty() != null) {
-	    	HeapFile writeToFile = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-	    	writeToFile.writePage(currentPage);
-	    	// mark as not dirty 
-	    	currentPage.markDirty(false, null);
+    	if (currentPage != null && currentPage.isDirty() != null) {
+	    	// latched, since transactions holding tuple locks may be
+	    	// modifying other tuples on the page
+	    	synchronized (currentPage) {
+	    		if (currentPage.isDirty() != null)
+	    			writePage(currentPage);
+	    	}
     	}
     }
 
+    /**
+     * Writes a dirty page to its file. Must be called with the page latched.
+     */
+    private void writePage(Page p) throws IOException {
+    	// write ahead: the log must be on disk up to the record of each
+    	// uncommitted change on the page, so that recovery can undo it,
+    	// before it is. A page nobody holds a write lock on only has
+    	// committed changes, which were logged when their transaction
+    	// committed
+    	LogFile log = Database.getLogFile();
+    	long lsn = -1;
+    	if (lockManager.isExclusivelyLocked(p.getId()))
+    		lsn = log.logWrite(lockManager.writer(p.getId()), p.getBeforeImage(), p);
+    	else if (p instanceof HeapPage)
+    		lsn = logTupleChanges((HeapPage) p);
+    	if (lsn >= 0)
+    		log.force(lsn);
+    	Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+    	// mark as not dirty
+    	p.markDirty(false, null);
+    	dirtyPages.remove(p.getId());
+    }
+
+    /**
+     * Logs the changes to a HeapPage that transactions may have made under
+     * tuple locks, each under the transaction holding the lock on the
+     * tuple, so that aborting one undoes only its own tuples. Tuples are
+     * locked before they are changed, so every uncommitted change has its
+     * lock held, and a changed tuple nobody holds a lock on was changed by
+     * a committed transaction. Must be called with the page latched.
+     *
+     * @return the log sequence number to force the log to, or -1 if the
+     *         page has no changes to log
+     */
+    private long logTupleChanges(HeapPage p) throws IOException {
+        HeapPage before = p.getBeforeImage();
+        Map<TransactionId, Set<Integer>> bySlot =
+                new HashMap<TransactionId, Set<Integer>>();
+        for (int i : HeapPageDelta.diff(before, p).getSlots()) {
+            TransactionId writer = lockManager.writer(new RecordId(p.getId(), i));
+            if (writer == null)
+                continue; // committed, and logged then
+            Set<Integer> slots = bySlot.get(writer);
+            if (slots == null) {
+                slots = new HashSet<Integer>();
+                bySlot.put(writer, slots);
+            }
+            slots.add(i);
+        }
+        LogFile log = Database.getLogFile();
+        long lsn = -1;
+        for (Map.Entry<TransactionId, Set<Integer>> e : bySlot.entrySet()) {
+            HeapPage after = HeapPageDelta.diff(before, p, e.getValue()).apply(before, true);
+            lsn = log.logWrite(e.getKey(), before, after);
+        }
+        return lsn;
+    }
+
+    /**
+     * Records that a page was dirtied, and starts the page cleaner.
+     */
+    private void pageDirtied(PageId pid) {
+        if (!dirtyPages.containsKey(pid))
+            dirtyPages.putIfAbsent(pid, Database.getLogFile().endLsn());
+        startCleaner();
+    }
+
+    /** Starts the page cleaner if it is not running yet. */
+    private void startCleaner() {
+        if (cleaning.compareAndSet(false, true)) {
+            Thread cleaner = new Thread("BufferPool cleaner") {
+                public void run() {
+                    cleanPages();
+                }
+            };
+            cleaner.setDaemon(true);
+            cleaner.start();
+        }
+    }
+
+    /**
+     * @return a copy of the dirty page table: the dirty pages, with the log
+     *         sequence number before which no record of their changes can
+     *         be
+     * @see LogFile#logCheckpoint
+     */
+    Map<PageId, Long> getDirtyPages() {
+        return new HashMap<PageId, Long>(dirtyPages);
+    }
+
+    /**
+     * The page cleaner: writes out a few dirty pages every so often, oldest
+     * first so that the log recovery has to redo keeps getting shorter,
+     * until this is no longer the database's buffer pool. When a fetch
+     * finds no page to evict, it writes every page it can right away, so
+     * that fetching never has to write a page itself.
+     */
+    private void cleanPages() {
+        while (Database.getBufferPool() == this) {
+            synchronized (cleaned) {
+                try {
+                    if (!starved)
+                        cleaned.wait(CLEANER_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            int batch = starved ? Integer.MAX_VALUE : CLEANER_BATCH;
+            starved = false;
+            List<Map.Entry<PageId, Long>> oldest =
+                    new ArrayList<Map.Entry<PageId, Long>>(getDirtyPages().entrySet());
+            Collections.sort(oldest, new Comparator<Map.Entry<PageId, Long>>() {
+                public int compare(Map.Entry<PageId, Long> a, Map.Entry<PageId, Long> b) {
+                    return a.getValue().compareTo(b.getValue());
+                }
+            });
+            int written = 0;
+            for (Map.Entry<PageId, Long> e : oldest) {
+                if (written == batch || Database.getBufferPool() != this)
+                    break;
+                try {
+                    if (cleanPage(e.getKey()))
+                        written++;
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            synchronized (cleaned) {
+                cleaned.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes a dirty page, without holding the buffer pool's monitor, so
+     * that the write does not hold up other transactions. Pages running
+     * transactions hold write locks on are written too (STEAL), since pages
+     * are only changed with the page latched: pages one transaction holds an
+     * exclusive lock on, and HeapPages transactions change under tuple
+     * locks.
+     *
+     * @return true if the page was written
+     */
+    private boolean cleanPage(PageId pid) throws IOException {
+        Page p = pool.get(pid);
+        if (p == null) {
+            dirtyPages.remove(pid);
+            return false;
+        }
+        // transactions take their lock before they latch the page to
+        // change it, so no change is under way if nobody holds a write lock
+        synchronized (p) {
+            if (p.isDirty() == null) {
+                dirtyPages.remove(pid);
+                return false;
+            }
+            if (!lockManager.isWriteLocked(pid)) {
+                writePage(p);
+                // only committed changes were written; aborts return to them
+                p.setBeforeImage();
+                return true;
+            }
+            // uncommitted changes are logged before they are written, so
+            // an abort can roll them back; the before image stays the one
+            // from before the transaction
+            if (p instanceof HeapPage || lockManager.isExclusivelyLocked(pid)) {
+                writePage(p);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Log the changes to the pages a transaction locked for writing, so
+     * that they are in the log ahead of its commit record. The pages stay
+     * in the buffer pool (NO FORCE); recovery redoes the changes from the
+     * log if the page cleaner has not written them out.
+     */
+    public void logPages(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        for (Object r : lockManager.locked(tid)) {
+            if (!(r instanceof PageId))
+                continue;
+            LockManager.Mode m = lockManager.lockMode(tid, r);
+            Page p = pool.get(r);
+            if (p == null || m == null || !m.isWrite())
+                continue;
+            // latched, since transactions holding tuple locks may be
+            // modifying other tuples on the page
+            synchronized (p) {
+                if (p.isDirty() == null)
+                    continue;
+                Page image = committedImage(tid, p, tupleChanges.get(tid));
+                if (image != null)
+                    log.logWrite(tid, p.getBeforeImage(), image);
+            }
+        }
+    }
+
+    /**
+     * The image of a page tid leaves behind when it commits.  A page tid
+     * holds an exclusive lock on is that page itself; on a page tid only
+     * holds tuple locks on, other transactions may have uncommitted changes
+     * too, so it is the before image with just tid's tuple changes made to
+     * it.  The page must be latched.
+     *
+     * @param changes the tuple changes tid made, or null if none
+     * @return the image, or null if tid changed nothing on the page
+     */
+    private Page committedImage(TransactionId tid, Page p,
+                                List<TupleChange> changes) throws IOException {
+        if (lockManager.lockMode(tid, p.getId()) == LockManager.Mode.X
+                || !(p instanceof HeapPage))
+            return p;
+        Set<Integer> slots = new HashSet<Integer>();
+        if (changes != null) {
+            for (TupleChange c : changes) {
+                if (c.rid.getPageId().equals(p.getId()))
+                    slots.add(c.rid.tupleno());
+            }
+        }
+        HeapPage before = (HeapPage) p.getBeforeImage();
+        HeapPageDelta d = HeapPageDelta.diff(before, (HeapPage) p, slots);
+        return d.isEmpty() ? null : d.apply(before, true);
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        for (Object r : lockManager.locked(tid)) {
+            if (!(r instanceof PageId))
+                continue;
+            LockManager.Mode m = lockManager.lockMode(tid, r);
+            Page p = pool.get(r);
+            // a page tid locked for writing may also hold changes of others
+            // with tuple locks on it, which are written out along with tid's
+            if (p != null && m != null && m.isWrite() && p.isDirty() != null) {
+                flushPage((PageId) r);
+                // the flushed contents are what a later abort returns to
+                p.setBeforeImage();
+            }
+        }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Wakes up the page cleaner to write every page it can, and waits for
+     * it to finish a pass. Must not be called with the buffer pool's
+     * monitor held.
+     *
+     * @throws DbException if the deadline has passed
      */
-	private synchronized void evictPage() throws DbException {
-//        // Need to generate a random page from all the pages in the buffer pool
-//    	// referencing: http://stackoverflow.com/questions/1247915/how-to-generate-a-random-number-with-java-from-given-list-of-numbers
-//    	
-//    	// so grab all the page ids:
+	private void awaitCleaner(long deadline) throws DbException {
+		long left = deadline - System.currentTimeMillis();
+		if (left <= 0)
+			throw new DbException("cannot evict a page: all pages in the buffer pool are locked for writing");
+		starved = true;
+		startCleaner();
+		synchronized (cleaned) {
+			cleaned.notifyAll();
+			try {
+				cleaned.wait(Math.min(left, CLEANER_INTERVAL_MILLIS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DbException("interrupted while waiting for a page to evict");
+			}
+		}
+    }
+
+    /**
+     * Discards a page from the buffer pool, if there is one that may be
+     * evicted.
+     * Only clean pages are evicted; dirty ones are written by the page
+     * cleaner, never here, so that fetching a page does not wait for a
+     * write. Pages a transaction holds a write lock or intention on are
+     * not evicted even once the cleaner has written them, so that it keeps
+     * modifying the copy the other transactions see, and an abort finds
+     * its before image. A transaction can therefore have no more pages
+     * locked for writing than fit in the buffer pool; fetching a page fails
+     * with a DbException once every page is.
+     *
+     * @return true if a page was evicted
+     */
+	private synchronized boolean evictPage() {
+    	// pick a random clean page: start at a random page and take the first
+    	// clean one after it
     	List<PageId> pagelist = new ArrayList<PageId>(pool.keySet());
     	int arraySize = pagelist.size();
-    	Random random = new Random();
-    	int randomNum = random.nextInt(arraySize);
-    	PageId pid = pagelist.get(randomNum);
-
-    	if (pool.get(pid).isDirty() != null) {
-        	try {
-    			if (pool.get(pid).isDirty() != null) flushPage(pid);
-    		} catch (IOException e) {
-    			e.printStackTrace();
+    	int start = arraySize == 0 ? 0 : new Random().nextInt(arraySize);
+    	for (int i = 0; i < arraySize; i++) {
+    		PageId pid = pagelist.get((start + i) % arraySize);
+    		Page p = pool.get(pid);
+    		if (p == null)
+    			continue;
+    		// latched, so that a change under way is not lost
+    		synchronized (p) {
+    			if (p.isDirty() == null && !lockManager.isWriteLocked(pid)) {
+    				pool.remove(pid, p);
+    				return true;
+    			}
     		}
     	}
-    	pool.remove(pid);
+    	return false;
     }
 }
@@ -125,30 +125,13 @@ public class Catalog {
     }
 
     public Iterator<Integer> tableIdIterator() {
-    	// we need to make a custom iterator
-    	Iterator<Integer> iterator = new Iterator<Integer>() {
-    		public int current = 0;
-    		
-    		// need to check if there is a next
-    		public boolean hasNext() {
-    			int next = current + 1;
-    			return (next == tables.size());
-    		};
-    		
-    		// actually go to the next item in the table
-    		public Integer next() {
-    			if (hasNext()) {
-    				current++;
-    				return tables.get(current).getId();
-    			} else {
-    				throw new NoSuchElementException("Next does not exist!");
-    			}
-    		};
-    		public void remove() {
-    			// do nothing
-    		};
-    	};
-    	return iterator;
+    	// iterate over a snapshot of the ids, so that tables added while
+    	// iterating do not disturb the caller
+    	ArrayList<Integer> ids = new ArrayList<Integer>();
+    	for (DbFile f : tables) {
+    		ids.add(f.getId());
+    	}
+    	return ids.iterator();
     }
 
     public String getTableName(int id) {
@@ -171,6 +154,14 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line has the form <code>name (field type [pk], ...) [format]</code>,
+     * where type is <code>int</code>, <code>string</code>, or
+     * <code>varchar</code> (also spelled <code>text</code>), and the optional
+     * format is <code>pax</code> to store the table in a {@link PaxFile},
+     * <code>compressed</code> to store it in a {@link CompressedHeapFile}, or
+     * <code>slotted</code> to store it in a {@link SlottedHeapFile}. Tables
+     * with varchar columns are always stored in SlottedHeapFiles; other
+     * tables default to {@link HeapFile}s.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -195,6 +186,9 @@ public class Catalog {
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().toLowerCase().equals("string"))
                         types.add(Type.STRING_TYPE);
+                    else if (els2[1].trim().toLowerCase().equals("varchar")
+                            || els2[1].trim().toLowerCase().equals("text"))
+                        types.add(Type.VARCHAR_TYPE);
                     else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
@@ -211,7 +205,24 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                //an optional annotation after the field list picks the storage format
+                String format = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                File dataFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf;
+                if (format.equals("") && t.isFixedSize())
+                    tabHf = new HeapFile(dataFile, t);
+                else if (format.equals("") || format.equals("slotted"))
+                    tabHf = new SlottedHeapFile(dataFile, t);
+                else if (format.equals("pax") && t.isFixedSize())
+                    tabHf = new PaxFile(dataFile, t);
+                else if (format.equals("compressed") && t.isFixedSize())
+                    tabHf = new CompressedHeapFile(dataFile, t);
+                else {
+                    System.out.println("Unknown storage format " + format
+                            + " for table " + name);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ColumnScan is a sequential scan over a table stored in a {@link PaxFile}
+ * that only decodes the requested columns. The returned tuples contain just
+ * those columns, in the order given to the constructor, with field names
+ * prefixed by the table alias as for {@link SeqScan}.
+ */
+public class ColumnScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] fields;
+    private final TupleDesc tupleTd;
+    private TupleDesc aliasedTd;
+    private final TransactionId tid;
+    private final PaxFile file;
+    private PredicateEvaluator filter;
+
+    /**
+     * Creates a scan over the specified columns of a table.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a {@link PaxFile}
+     * @param tableAlias
+     *            the alias of this table (see {@link SeqScan#SeqScan})
+     * @param fields
+     *            the indexes (in the table's TupleDesc) of the columns to
+     *            return
+     * @throws IllegalArgumentException
+     *             if the table is not stored in a PaxFile
+     */
+    public ColumnScan(TransactionId tid, int tableid, String tableAlias,
+            int[] fields) {
+        super(tid, tableid, tableAlias);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof PaxFile))
+            throw new IllegalArgumentException("table " + tableid
+                    + " is not stored in a PaxFile");
+        this.fields = fields.clone();
+        this.tid = tid;
+        this.file = (PaxFile) f;
+
+        TupleDesc td = f.getTupleDesc();
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = td.getFieldType(fields[i]);
+            names[i] = td.getFieldName(fields[i]);
+        }
+        this.tupleTd = new TupleDesc(types, names);
+        this.aliasedTd = aliased(tableAlias);
+        setIterator(file.iterator(tid, this.fields, tupleTd));
+    }
+
+    /** @return tupleTd with its field names prefixed by alias */
+    private TupleDesc aliased(String alias) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = tupleTd.getFieldType(i);
+            names[i] = (alias == null ? "null" : alias) + "."
+                    + tupleTd.getFieldName(i);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    public void reset(int tableid, String alias) {
+        super.reset(tableid, alias);
+        this.aliasedTd = aliased(alias);
+    }
+
+    /**
+     * Push a compiled predicate down into this scan. Unlike a scan of a
+     * HeapFile, tuples are tested after their columns are decoded, but
+     * tuples that do not satisfy it are dropped before leaving the scan.
+     * Must be called before the scan is opened.
+     *
+     * @param filter
+     *            a predicate compiled against the TupleDesc of this scan,
+     *            i.e. of the projected columns
+     */
+    public void setFilter(PredicateEvaluator filter) {
+        this.filter = filter;
+        setIterator(file.iterator(tid, fields, tupleTd, filter));
+    }
+
+    /**
+     * Push a conjunction of predicates down into this scan, as for
+     * {@link #setFilter}. PaxFiles have no zone maps, so no pages are
+     * skipped. Must be called before the scan is opened.
+     *
+     * @param preds
+     *            predicates over the TupleDesc of this scan, ANDed together
+     */
+    public void setPredicates(List<Predicate> preds) {
+        setFilter(PredicateCompiler.compileConjunction(preds, tupleTd));
+    }
+
+    public PredicateEvaluator getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return the indexes in the table's TupleDesc of the columns returned
+     *         by this scan
+     */
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    /**
+     * Returns the TupleDesc of the projected columns, with field names
+     * prefixed with the table alias.
+     */
+    public TupleDesc getTupleDesc() {
+        return aliasedTd;
+    }
+}
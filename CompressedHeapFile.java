@@ -0,0 +1,296 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * CompressedHeapFile is a {@link HeapFile} whose pages are compressed on disk
+ * with {@link PageCodec} and decompressed when they are read, so that cold
+ * tables take less space and less I/O to scan. In memory, pages are ordinary
+ * {@link HeapPage}s.
+ * <p>
+ * Since compressed pages vary in size, each page is stored in an extent
+ * somewhat larger than it needs, found through a page directory that a
+ * header at the start of the file points to:
+ * <pre>
+ * [int MAGIC] [long directoryOffset]
+ * ([int length] [page data] [unused]) ...
+ * [int numPages] [long offset, int capacity] * numPages
+ * </pre>
+ * A rewritten page replaces the old copy in place if it fits in its extent,
+ * without touching the directory. Otherwise it is moved to free space and a
+ * new directory is written to free space too; the header is switched to the
+ * new directory only once both are on disk, so a crash loses at most the
+ * page being written. The old directory and the old copy of the page then
+ * become free space, which later moves reuse, and free space at the end of
+ * the file is truncated. Free space is found again from the directory when
+ * the file is opened. Compressed files are still meant for tables that are
+ * scanned much more often than they are modified.
+ * <p>
+ * Catalog schemas select CompressedHeapFiles with the <code>compressed</code>
+ * annotation.
+ */
+public class CompressedHeapFile extends HeapFile {
+
+    static final int MAGIC = 0x5a504733;
+    static final int HEADER_SIZE = 12;
+    static final int ENTRY_SIZE = 12;
+
+    // kept open, since the file is read and written a page at a time
+    private RandomAccessFile raf;
+    private long[] offsets;
+    private int[] capacities;
+    private int count = -1;
+    private long dirOffset;
+    private int dirSize;
+    private long fileEnd;
+    /** Space no page or directory uses, as {offset, length} pairs. */
+    private final List<long[]> free = new ArrayList<long[]>();
+
+    /**
+     * Constructs a compressed heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the schema of the tuples in this file
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    /** Read the page directory the header points to, if not yet loaded. */
+    private void loadDirectory() throws IOException {
+        if (count >= 0)
+            return;
+        offsets = new long[16];
+        capacities = new int[16];
+        raf = new RandomAccessFile(file, "rw");
+        if (raf.length() == 0) {
+            count = 0;
+            dirOffset = HEADER_SIZE;
+            dirSize = 0;
+            fileEnd = HEADER_SIZE;
+            return;
+        }
+        if (raf.readInt() != MAGIC)
+            throw new IOException(file + " is not a compressed heap file");
+        dirOffset = raf.readLong();
+        raf.seek(dirOffset);
+        int n = raf.readInt();
+        byte[] entries = new byte[n * ENTRY_SIZE];
+        raf.readFully(entries);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(entries));
+        ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            offsets[i] = dis.readLong();
+            capacities[i] = dis.readInt();
+        }
+        count = n;
+        dirSize = 4 + n * ENTRY_SIZE;
+        findFree();
+    }
+
+    /**
+     * Collect the gaps between the page extents and the directory, and
+     * truncate whatever follows the last of them, which a crash may have
+     * left behind.
+     */
+    private void findFree() throws IOException {
+        long[][] extents = new long[count + 1][];
+        for (int i = 0; i < count; i++)
+            extents[i] = new long[] { offsets[i], capacities[i] };
+        extents[count] = new long[] { dirOffset, dirSize };
+        Arrays.sort(extents, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        long pos = HEADER_SIZE;
+        for (long[] e : extents) {
+            release(pos, e[0] - pos);
+            pos = Math.max(pos, e[0] + e[1]);
+        }
+        fileEnd = pos;
+        raf.setLength(fileEnd);
+    }
+
+    /** Add an extent to the free space, merging it with its neighbors. */
+    private void release(long offset, long length) {
+        if (length <= 0)
+            return;
+        for (Iterator<long[]> it = free.iterator(); it.hasNext();) {
+            long[] f = it.next();
+            if (f[0] + f[1] == offset || offset + length == f[0]) {
+                it.remove();
+                offset = Math.min(offset, f[0]);
+                length += f[1];
+            }
+        }
+        free.add(new long[] { offset, length });
+    }
+
+    /**
+     * Take space for an extent from the free space, or from the end of the
+     * file if no free space is large enough.
+     *
+     * @return the offset of the extent
+     */
+    private long allocate(int length) {
+        for (int i = 0; i < free.size(); i++) {
+            long[] f = free.get(i);
+            if (f[1] < length)
+                continue;
+            long offset = f[0];
+            if (f[1] == length)
+                free.remove(i);
+            else {
+                f[0] += length;
+                f[1] -= length;
+            }
+            return offset;
+        }
+        long offset = fileEnd;
+        fileEnd += length;
+        return offset;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= offsets.length)
+            return;
+        int cap = Math.max(n, offsets.length * 2);
+        long[] o = new long[cap];
+        int[] c = new int[cap];
+        System.arraycopy(offsets, 0, o, 0, offsets.length);
+        System.arraycopy(capacities, 0, c, 0, capacities.length);
+        offsets = o;
+        capacities = c;
+    }
+
+    // see DbFile.java for javadocs
+    public synchronized Page readPage(PageId pid) {
+        try {
+            loadDirectory();
+            int pageNo = pid.pageNumber();
+            if (pageNo < 0 || pageNo >= count)
+                throw new IllegalArgumentException("page " + pageNo
+                        + " does not exist in this file");
+            raf.seek(offsets[pageNo]);
+            byte[] compressed = new byte[raf.readInt()];
+            raf.readFully(compressed);
+            return new HeapPage((HeapPageId) pid,
+                    PageCodec.decompress(compressed, getTupleDesc()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        byte[] data = page.getPageData();
+        getZoneMap().pageWriting();
+        try {
+            writeCompressed(page.getId().pageNumber(), data);
+        } finally {
+            // outside the lock, since the zone map may read pages to rebuild
+            getZoneMap().pageWritten(page.getId().pageNumber(), data,
+                    !Database.getBufferPool().isPageWriteLocked(page.getId()));
+        }
+    }
+
+    private synchronized void writeCompressed(int pageNo, byte[] data)
+            throws IOException {
+        loadDirectory();
+        if (pageNo < 0 || pageNo > count)
+            throw new IllegalArgumentException("page " + pageNo
+                    + " cannot be written to a file with " + count + " pages");
+        byte[] compressed = PageCodec.compress(data, getTupleDesc());
+        int length = 4 + compressed.length;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(compressed.length);
+        dos.write(compressed);
+        dos.flush();
+
+        if (pageNo < count && length <= capacities[pageNo]) {
+            raf.seek(offsets[pageNo]);
+            raf.write(baos.toByteArray());
+            return;
+        }
+
+        // room to grow, so that a page filling up is not moved every time
+        int capacity = length + length / 4;
+        long offset = allocate(capacity);
+        raf.seek(offset);
+        raf.write(baos.toByteArray());
+
+        long[] old = null;
+        if (pageNo == count) {
+            ensureCapacity(count + 1);
+            count++;
+        } else {
+            old = new long[] { offsets[pageNo], capacities[pageNo] };
+        }
+        offsets[pageNo] = offset;
+        capacities[pageNo] = capacity;
+        writeDirectory();
+        // nothing on disk refers to the old copy any more
+        if (old != null)
+            release(old[0], old[1]);
+        truncate();
+    }
+
+    /**
+     * Write a new directory to free space, and then switch the header to
+     * it. Each is forced to disk before the next write, so that the header
+     * never points to a directory, nor a directory to a page, that is not
+     * on disk. The old directory becomes free space.
+     */
+    private void writeDirectory() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(4 + count
+                * ENTRY_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            dos.writeLong(offsets[i]);
+            dos.writeInt(capacities[i]);
+        }
+        dos.flush();
+        long offset = allocate(baos.size());
+        raf.seek(offset);
+        raf.write(baos.toByteArray());
+        raf.getChannel().force(false);
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeLong(offset);
+        raf.getChannel().force(false);
+        release(dirOffset, dirSize);
+        dirOffset = offset;
+        dirSize = baos.size();
+    }
+
+    /** Give back free space at the end of the file. */
+    private void truncate() throws IOException {
+        for (Iterator<long[]> it = free.iterator(); it.hasNext();) {
+            long[] f = it.next();
+            if (f[0] + f[1] == fileEnd) {
+                it.remove();
+                fileEnd = f[0];
+                raf.setLength(fileEnd);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of pages in this CompressedHeapFile.
+     */
+    public synchronized int numPages() {
+        try {
+            loadDirectory();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return count;
+    }
+}
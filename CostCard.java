@@ -1,14 +1,17 @@
 package simpledb;
-import java.util.Vector;
 
 /** Class returned by {@link JoinOptimizer#computeCostAndCardOfSubplan} specifying the
-    cost and cardinality of the optimal plan represented by plan.
+    cost and cardinality of the optimal plan that performs join last.
 */
 public class CostCard {
     /** The cost of the optimal subplan */
     public double cost;
     /** The cardinality of the optimal subplan */
     public int card;
-    /** The optimal subplan */
-    public Vector<LogicalJoinNode> plan;
+    /** The join the optimal subplan performs last, with inner and outer as
+        it performs it; the rest of the plan is in the {@link PlanCache} */
+    public LogicalJoinNode join;
+    /** The joins performed by the subplan on one side of join, as a bitmask;
+        the subplan on the other side performs the rest */
+    public long left;
 }
@@ -88,4 +88,16 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Returns the number of pages in this DbFile; pages are numbered from 0
+     * to numPages() - 1.
+     */
+    public int numPages();
+
+    /**
+     * Returns the file that holds this DbFile's pages on disk. Other files
+     * belonging to the table, such as statistics, are stored next to it.
+     */
+    public File getFile();
 }
@@ -53,6 +53,34 @@ public class HashEquiJoin extends Operator {
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
 
+    /** The scan under child2 that receives the Bloom filter, or null. */
+    transient private SeqScan probeScan = null;
+
+    /**
+     * Find the scan at the bottom of the probe side, looking through
+     * operators that pass tuples through unchanged, so that the join field
+     * has the same index in the scan as in child2.
+     */
+    private static SeqScan findScan(DbIterator it) {
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        return it instanceof SeqScan ? (SeqScan) it : null;
+    }
+
+    /**
+     * Push a Bloom filter over the keys of the current hash table into the
+     * probe side scan, so that it drops tuples that cannot join with this
+     * chunk of child1.
+     */
+    private void pushBloomFilter() {
+        if (probeScan == null)
+            return;
+        BloomFilter bf = new BloomFilter(map.size());
+        for (Object key : map.keySet())
+            bf.add((Field) key);
+        probeScan.setRuntimeFilter(pred.getField2(), bf);
+    }
+
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
@@ -64,9 +92,12 @@ public class HashEquiJoin extends Operator {
                 map.put(t1.getField(pred.getField1()), list);
             }
             list.add(t1);
-            if (cnt++ == MAP_SIZE)
+            if (cnt++ == MAP_SIZE) {
+                pushBloomFilter();
                 return true;
+            }
         }
+        pushBloomFilter();
         return cnt > 0;
 
     }
@@ -75,6 +106,8 @@ public class HashEquiJoin extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
+        if (pred.getOperator() == Predicate.Op.EQUALS)
+            probeScan = findScan(child2);
         loadMap();
         super.open();
     }
@@ -87,11 +120,17 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        if (probeScan != null) {
+            probeScan.setRuntimeFilter(-1, null);
+            probeScan = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        listIt = null;
+        loadMap();
     }
 
     transient Iterator<Tuple> listIt = null;
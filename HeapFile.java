@@ -17,6 +17,8 @@ import java.util.*;
 public class HeapFile implements DbFile {
 	File file;
 	private TupleDesc tupleDesc;
+	private ZoneMap zoneMap;
+	private final int id;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -24,10 +26,27 @@ public class HeapFile implements DbFile {
      * @param f
      *            the file that stores the on-disk backing store for this heap
      *            file.
+     * @throws IllegalArgumentException
+     *             if td has variable-length fields, which must be stored in
+     *             a {@link SlottedHeapFile}
      */
     public HeapFile(File f, TupleDesc td) {
+        if (!td.isFixedSize())
+            throw new IllegalArgumentException(
+                    "HeapFile cannot store variable-length fields");
         this.file = f;
+        // computed once: resolving the absolute path is not cheap
+        this.id = f.getAbsoluteFile().hashCode();
         this.tupleDesc = td;
+        this.zoneMap = new ZoneMap(this);
+    }
+
+    /**
+     * Returns the per-page min/max summaries of this file, which scans use
+     * to skip pages that cannot match their predicates.
+     */
+    public ZoneMap getZoneMap() {
+        return zoneMap;
     }
 
     /**
@@ -49,7 +68,7 @@ public class HeapFile implements DbFile {
      * @return an ID uniquely identifying this HeapFile.
      */
     public int getId() {
-        return file.getAbsoluteFile().hashCode();
+        return id;
     }
 
     /**
@@ -96,12 +115,21 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        RandomAccessFile randFile = new RandomAccessFile(file, "rws"); //so we can read and write and seek
         PageId pid = page.getId();
         int pageNo = pid.pageNumber();
-        randFile.seek(pageNo * BufferPool.PAGE_SIZE);
-        randFile.write(page.getPageData());
-        randFile.close();
+        byte[] data = page.getPageData();
+        zoneMap.pageWriting();
+        try {
+            RandomAccessFile randFile = new RandomAccessFile(file, "rws"); //so we can read and write and seek
+            randFile.seek(pageNo * BufferPool.PAGE_SIZE);
+            randFile.write(data);
+            randFile.close();
+        } finally {
+            // a page the buffer pool writes out while it is still locked
+            // for writing may hold deletes that get rolled back
+            zoneMap.pageWritten(pageNo, data,
+                    !Database.getBufferPool().isPageWriteLocked(pid));
+        }
     }
 
     /**
@@ -124,25 +152,17 @@ public class HeapFile implements DbFile {
     	// create an array list of pages because that's what we need to return
     	ArrayList<Page> result = new ArrayList<Page>();
     	
-    	boolean inserted = false;
     	int numPages = this.numPages();
-//    	System.out.println("number of pages is " + numPages);
 
         // loop through the pages
     	for (int potentialPage = 0; potentialPage < numPages; potentialPage++) {
-//    		System.out.println("looping thru page");
 
     		// call current page from buffer pool
     		PageId currentPid = new HeapPageId(this.getId(), potentialPage);
-    		BufferPool buffer = Database.getBufferPool();
-            HeapPage currentPage = (HeapPage) buffer.getPage(tid, currentPid, Permissions.READ_WRITE);
+    		HeapPage currentPage = insertInto(tid, currentPid, t);
            
-        	// if there is space, then call page insert on that page
-            if (currentPage.getNumEmptySlots() > 0) {  
-//        		System.out.println("num empty slots is " + currentPage.getNumEmptySlots());
-
-            	currentPage.insertTuple(t);
-            	inserted = true;
+        	// if there was space, the tuple is on that page
+            if (currentPage != null) {  
             	result.add(currentPage);
             	
             	// return the page
@@ -150,30 +170,64 @@ public class HeapFile implements DbFile {
             }	
     	}	
     	    	
-    	// if we need to create a page
-    	if (!inserted) {
-//    		System.out.println("creating new page");
-    		// create a page with the correct page number
-    		HeapPageId newPid = new HeapPageId(this.getId(), numPages);
-    		HeapPage newPage = new HeapPage(newPid, HeapPage.createEmptyPageData());
-    		
-    		// then just use page insert to add the tuple to that page
-    		newPage.insertTuple(t);
-    		
-    		// then we have to actually add the new page to the entire file
-    		// by grabbing the file and editing it
-          RandomAccessFile randFile = new RandomAccessFile(file, "rw"); // lets us read and write to file
-          randFile.seek(numPages * BufferPool.PAGE_SIZE);
-          randFile.write(newPage.getPageData(), 0, BufferPool.PAGE_SIZE);
-          randFile.close();
-            result.add(newPage);
-            
-            // return result
-            return result;
-            
-    	}
-    	
-        return null;
+    	// if we need to create a page, append an empty one and insert into
+    	// it through the buffer pool, so that it is locked like any other.
+    	// Only the first of several concurrent inserters appends the page
+		HeapPageId newPid = new HeapPageId(this.getId(), numPages);
+		synchronized (this) {
+			if (this.numPages() == numPages)
+				writePage(new HeapPage(newPid, HeapPage.createEmptyPageData()));
+		}
+		HeapPage newPage = insertInto(tid, newPid, t);
+		if (newPage == null) {
+			// the others filled it up first
+			return insertTuple(tid, t);
+		}
+		result.add(newPage);
+		return result;
+    }
+
+    /**
+     * Inserts t into the page if it has an empty slot, and returns the page.
+     * Otherwise returns null, and gives back the lock on the page unless the
+     * transaction held one already, so that inserters do not keep the full
+     * pages they pass over locked.
+     */
+    private HeapPage insertInto(TransactionId tid, PageId pid, Tuple t)
+            throws DbException, TransactionAbortedException {
+		BufferPool buffer = Database.getBufferPool();
+		boolean held = buffer.holdsLock(tid, pid);
+		if (!buffer.isRowLocking()) {
+			HeapPage page = (HeapPage) buffer.getPage(tid, pid, Permissions.READ_WRITE);
+			synchronized (page) {
+				if (page.getNumEmptySlots() > 0) {
+					page.insertTuple(t);
+					// marked under the latch, so that the buffer pool
+					// never takes the changed page for a clean one
+					page.markDirty(true, tid);
+					buffer.getVersionStore().changed(tid, t.getRecordId(), null, t);
+					return page;
+				}
+			}
+		} else {
+			HeapPage page = (HeapPage) buffer.getPageForTuples(tid, pid, Permissions.READ_WRITE);
+			synchronized (page) {
+				for (int i = 0; i < page.numSlots; i++) {
+					// a slot emptied by a transaction that has not finished
+					// is still locked by it, and is passed over
+					if (!page.isSlotUsed(i) && buffer.tryLockTuple(tid,
+							new RecordId(pid, i), Permissions.READ_WRITE)) {
+						page.insertTuple(t, i);
+						page.markDirty(true, tid);
+						buffer.getVersionStore().changed(tid, t.getRecordId(), null, t);
+						return page;
+					}
+				}
+			}
+		}
+		if (!held)
+			buffer.releasePage(tid, pid);
+		return null;
     }
 
     // see DbFile.java for javadocs
@@ -185,18 +239,67 @@ public class HeapFile implements DbFile {
     	// find the page the tuple lives on
     	PageId pageid = t.getRecordId().getPageId();
 		BufferPool buffer = Database.getBufferPool();
+		if (buffer.isRowLocking()) {
+			HeapPage currentPage = (HeapPage) buffer.getPageForTuples(tid, pageid, Permissions.READ_WRITE);
+			buffer.lockTuple(tid, t.getRecordId(), Permissions.READ_WRITE);
+			synchronized (currentPage) {
+				deleteVersioned(tid, currentPage, t);
+			}
+			result.add(currentPage);
+			return result;
+		}
         HeapPage currentPage = (HeapPage) buffer.getPage(tid, pageid, Permissions.READ_WRITE);
     	
     	// call page deleteTuple
-        currentPage.deleteTuple(t);
+		synchronized (currentPage) {
+			deleteVersioned(tid, currentPage, t);
+		}
         result.add(currentPage);
         return result;
     }
 
+    /**
+     * Deletes t from the page, keeping the deleted version for snapshots.
+     * The page must be latched.
+     */
+    private void deleteVersioned(TransactionId tid, HeapPage page, Tuple t)
+            throws DbException {
+		RecordId rid = t.getRecordId();
+		Tuple before = page.isSlotUsed(rid.tupleno()) ? page.getTuple(rid.tupleno()) : null;
+		page.deleteTuple(t);
+		page.markDirty(true, tid);
+		Database.getBufferPool().getVersionStore().changed(tid, rid, before, null);
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
 
-    	return new HeapFileIterator(this,tid);
+    	return new HeapFileIterator(this,tid,null,null);
+    }
+
+    /**
+     * Returns an iterator over the tuples in this HeapFile that satisfy
+     * filter. Tuples that do not qualify are rejected on the page bytes and
+     * never decoded.
+     *
+     * @param filter a compiled predicate over this file's TupleDesc
+     */
+    public DbFileIterator iterator(TransactionId tid, PredicateEvaluator filter) {
+    	return new HeapFileIterator(this,tid,filter,null);
+    }
+
+    /**
+     * Returns an iterator over the tuples in this HeapFile that satisfy all
+     * of preds. Pages whose zone map shows that no tuple can qualify are
+     * skipped without being read, and tuples on the remaining pages are
+     * filtered before being decoded.
+     *
+     * @param preds predicates over this file's TupleDesc, ANDed together
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> preds) {
+    	return new HeapFileIterator(this,tid,
+    	        PredicateCompiler.compileConjunction(preds, tupleDesc),
+    	        new ArrayList<Predicate>(preds));
     }
     
     class HeapFileIterator implements DbFileIterator {
@@ -204,17 +307,28 @@ public class HeapFile implements DbFile {
     	private Tuple next = null;
         Iterator<Tuple> it = null;
         int curpgno = 0;
+        // with row locking, the page being read and the next slot on it
+        HeapPage rowPage = null;
+        int slot = 0;
+        // true if the page being read is locked as a whole
+        boolean pageLocked = false;
 
         TransactionId tid;
         HeapFile hf;
+        PredicateEvaluator filter;
+        List<Predicate> preds;
 
-        public HeapFileIterator(HeapFile hf, TransactionId tid) {
+        public HeapFileIterator(HeapFile hf, TransactionId tid, PredicateEvaluator filter,
+                List<Predicate> preds) {
             this.hf = hf;
             this.tid = tid;
+            this.filter = filter;
+            this.preds = preds;
         }
 
         public void open() throws DbException, TransactionAbortedException {
             curpgno = -1;
+            rowPage = null;
         }
         
     	public boolean hasNext() throws DbException, TransactionAbortedException {
@@ -235,15 +349,22 @@ public class HeapFile implements DbFile {
         }
 
         Tuple readNext() throws TransactionAbortedException, DbException {
+            Long snapshot = Database.getBufferPool().getVersionStore().snapshot(tid);
+            if (snapshot != null)
+                return readNextSnapshot(snapshot);
+            if (Database.getBufferPool().isRowLocking())
+                return readNextLocked();
             if (it != null && !it.hasNext())
                 it = null;
 
             while (it == null && curpgno < hf.numPages() - 1) {
                 curpgno++;
+                if (preds != null && !hf.getZoneMap().mightMatch(curpgno, preds))
+                    continue;
                 HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
                 HeapPage curp = (HeapPage) Database.getBufferPool().getPage(tid,
                         curpid, Permissions.READ_ONLY);
-                it = curp.iterator();
+                it = filter == null ? curp.iterator() : curp.iterator(filter);
                 if (!it.hasNext())
                     it = null;
             }
@@ -253,6 +374,116 @@ public class HeapFile implements DbFile {
             return it.next();
         }
 
+        /**
+         * Reads the next tuple with row locking: each tuple is locked before
+         * it is decoded, and the page is only latched while it is read.
+         */
+        Tuple readNextLocked() throws TransactionAbortedException, DbException {
+            BufferPool bp = Database.getBufferPool();
+            while (true) {
+                if (rowPage == null) {
+                    if (curpgno >= hf.numPages() - 1)
+                        return null;
+                    curpgno++;
+                    if (preds != null && !hf.getZoneMap().mightMatch(curpgno, preds))
+                        continue;
+                    rowPage = (HeapPage) bp.getPageForTuples(tid,
+                            new HeapPageId(hf.getId(), curpgno), Permissions.READ_ONLY);
+                    slot = 0;
+                    // lock the whole page if no one is writing it, rather
+                    // than each of its tuples
+                    pageLocked = bp.tryLockPage(tid, rowPage.getId(),
+                            Permissions.READ_ONLY);
+                }
+                for (; slot < rowPage.numSlots; slot++) {
+                    if (pageLocked) {
+                        Tuple t;
+                        synchronized (rowPage) {
+                            t = rowPage.getTuple(slot, filter);
+                        }
+                        if (t != null) {
+                            slot++;
+                            return t;
+                        }
+                        continue;
+                    }
+                    boolean used;
+                    synchronized (rowPage) {
+                        used = rowPage.isSlotUsed(slot);
+                    }
+                    RecordId rid = new RecordId(rowPage.getId(), slot);
+                    // an empty slot a transaction holds a write lock on may
+                    // hold a tuple it deleted, which is only gone once it
+                    // commits, so wait for the lock as for any other tuple
+                    if (!used && !bp.isTupleWriteLocked(rid))
+                        continue;
+                    bp.lockTuple(tid, rid, Permissions.READ_ONLY);
+                    // the tuple may have been deleted, or the delete rolled
+                    // back, while we waited
+                    Tuple t;
+                    synchronized (rowPage) {
+                        t = rowPage.getTuple(slot, filter);
+                    }
+                    if (t != null) {
+                        slot++;
+                        return t;
+                    }
+                }
+                rowPage = null;
+            }
+        }
+
+        /**
+         * Reads the next tuple the snapshot sees, without taking locks: the
+         * versions of tuples changed since the snapshot started come from
+         * the VersionStore, the others from the page.
+         */
+        Tuple readNextSnapshot(long snapshot) throws DbException {
+            BufferPool bp = Database.getBufferPool();
+            VersionStore versions = bp.getVersionStore();
+            while (true) {
+                if (rowPage == null) {
+                    if (curpgno >= hf.numPages() - 1)
+                        return null;
+                    curpgno++;
+                    // no zone map pruning: it bounds the current contents of
+                    // the page, which may no longer hold tuples the snapshot
+                    // sees
+                    rowPage = (HeapPage) bp.getPageForSnapshot(tid,
+                            new HeapPageId(hf.getId(), curpgno));
+                    slot = 0;
+                }
+                boolean stale;
+                synchronized (rowPage) {
+                    stale = bp.peekPage(rowPage.getId()) != rowPage;
+                    for (; !stale && slot < rowPage.numSlots; slot++) {
+                        Tuple t;
+                        if (versions.isEmpty()) {
+                            t = rowPage.getTuple(slot, filter);
+                        } else {
+                            t = versions.visible(new RecordId(rowPage.getId(), slot),
+                                    snapshot, rowPage.isSlotUsed(slot)
+                                            ? rowPage.getTuple(slot) : null);
+                            if (t != null && filter != null && !filter.eval(t))
+                                t = null;
+                        }
+                        if (t != null) {
+                            slot++;
+                            return t;
+                        }
+                    }
+                }
+                if (stale) {
+                    // discarded by an abort, or evicted: read it again. Not
+                    // under the latch, since the buffer pool latches pages
+                    // while it holds its own monitor
+                    rowPage = (HeapPage) bp.getPageForSnapshot(tid, rowPage.getId());
+                    continue;
+                }
+                rowPage = null;
+            }
+        }
+
         public void rewind() throws DbException, TransactionAbortedException {
             close();
             open();
@@ -261,6 +492,7 @@ public class HeapFile implements DbFile {
         public void close() {
         	next = null;
             it = null;
+            rowPage = null;
             curpgno = Integer.MAX_VALUE;
         }
     }
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -16,11 +17,14 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
+    // decoded lazily by readers holding shared locks, so slots are
+    // published atomically
+    final AtomicReferenceArray<Tuple> tuples;
     final int numSlots;
+    final byte[] data;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
     
     boolean dirty;
     TransactionId transId;
@@ -45,22 +49,15 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data;
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        System.arraycopy(data, 0, header, 0, header.length);
+
+        // tuples are decoded lazily from data by getTuple, so that scans
+        // with a compiled predicate only decode the tuples that qualify
+        tuples = new AtomicReferenceArray<Tuple>(numSlots);
 
         setBeforeImage();
     }
@@ -116,6 +113,14 @@ public class HeapPage implements Page {
         }
     }
 
+    /** Set the before image to the given page data. */
+    void setBeforeImage(byte[] data) {
+        synchronized(oldDataLock)
+        {
+        oldData = data.clone();
+        }
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -125,21 +130,19 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset in the page data of the first byte of slot slotId
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int tupleOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * Decode the tuple in the specified slot from the page data read from
+     * disk.
+     */
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                data, tupleOffset(slotId), td.getSize()));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -185,7 +188,7 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+        for (int i=0; i<tuples.length(); i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
@@ -200,9 +203,20 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never decoded: copy its bytes
+            Tuple t = tuples.get(i);
+            if (t == null) {
+                try {
+                    dos.write(data, tupleOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
                 
@@ -213,7 +227,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length()); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -264,7 +278,7 @@ public class HeapPage implements Page {
         int tupleNo = rid.tupleNo;
         
         // if this record does not live on this page
-        if (pageid != this.pid) {
+        if (!this.pid.equals(pageid)) {
         	throw new DbException("You may have the wrong page!");
         }
         
@@ -272,7 +286,7 @@ public class HeapPage implements Page {
         if (this.isSlotUsed(tupleNo)==false) {
         	throw new DbException("Empty slot yo");
         } else {
-        	tuples[tupleNo] = null;
+        	tuples.set(tupleNo, null);
         	// reset the record id to null to represent that there is no data for this rid
         	t.setRecordId(null);
         	// indicate that the slot is no longer being used
@@ -319,10 +333,35 @@ public class HeapPage implements Page {
         // add t to tuples list
         
 //    	System.out.println("inserting into emptyslot " + nextEmptySlot);
-        RecordId new_rid = new RecordId(pid, nextEmptySlot);
-        markSlotUsed(nextEmptySlot, true);
+        insertTuple(t, nextEmptySlot);
+    }
+
+    /**
+     * Adds the specified tuple to the page in the specified slot, which
+     * must be empty.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if (!td.equals(t.getTupleDesc()))
+        	throw new DbException("This tuple does not match this table!");
+        if (isSlotUsed(slot))
+        	throw new DbException("Slot " + slot + " is in use");
+
+        RecordId new_rid = new RecordId(pid, slot);
+        markSlotUsed(slot, true);
         t.setRecordId(new_rid);
-        tuples[nextEmptySlot] = t;  
+        tuples.set(slot, t);
+
+        // keep the file's zone map a superset of the values on this page
+        DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (f instanceof HeapFile)
+            ((HeapFile) f).getZoneMap().include(pid.pageNumber(), t);
+    }
+
+    /** Empties a slot, without touching the tuple that was in it. */
+    void clearSlot(int slot) {
+        tuples.set(slot, null);
+        markSlotUsed(slot, false);
     }
     
     public int findEmptySlot(byte[] h) {
@@ -393,14 +432,29 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-    	return new HeapPageIterator(this);
+    	return new HeapPageIterator(this, null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy filter.
+     * Tuples that have not been decoded yet are tested against the page
+     * bytes, and only decoded if they qualify.
+     */
+    public Iterator<Tuple> iterator(PredicateEvaluator filter) {
+    	return new HeapPageIterator(this, filter);
     }
     
     // protected method used by the iterator to get the ith tuple
     // out of this page
     Tuple getTuple(int i) throws NoSuchElementException {
+        return getTuple(i, null);
+    }
+
+    // returns the ith tuple if it satisfies filter (which may be null), or
+    // null if the slot is empty or the tuple does not qualify
+    Tuple getTuple(int i, PredicateEvaluator filter) throws NoSuchElementException {
 
-        if (i >= tuples.length)
+        if (i >= tuples.length())
             throw new NoSuchElementException();
 
 
@@ -410,8 +464,20 @@ public class HeapPage implements Page {
                 return null;
             }
 
+            Tuple t = tuples.get(i);
+            if (t == null) {
+                if (filter != null && !filter.eval(data, tupleOffset(i)))
+                    return null;
+                t = readTuple(i);
+                // another reader may have decoded the slot meanwhile
+                if (!tuples.compareAndSet(i, null, t))
+                    t = tuples.get(i);
+            } else if (filter != null && !filter.eval(t)) {
+                return null;
+            }
+
             Debug.log(1, "HeapPage.getTuple: returning tuple %d", i);
-            return tuples[i];
+            return t;
 
         } catch (ArrayIndexOutOfBoundsException e) {
             throw new NoSuchElementException();
@@ -427,9 +493,11 @@ class HeapPageIterator implements Iterator<Tuple> {
     int curTuple = 0;
     Tuple nextToReturn = null;
     HeapPage p;
+    PredicateEvaluator filter;
 
-    public HeapPageIterator(HeapPage p) {
+    public HeapPageIterator(HeapPage p, PredicateEvaluator filter) {
         this.p = p;
+        this.filter = filter;
     }
 
     public boolean hasNext() {
@@ -438,7 +506,7 @@ class HeapPageIterator implements Iterator<Tuple> {
 
         try {
             while (true) {
-                nextToReturn = p.getTuple(curTuple++);
+                nextToReturn = p.getTuple(curTuple++, filter);
                 if(nextToReturn != null)
                     return true;
             }
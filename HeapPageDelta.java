@@ -0,0 +1,200 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HeapPageDelta is the slot-level change between two images of a
+ * HeapPage: for each slot that differs, its contents in the older and in
+ * the newer image.  The log records these instead of whole page images
+ * when only a few tuples of a page change.
+ * <p>
+ * Applying a delta sets its slots to one of the two images, so it can be
+ * redone or undone any number of times.  An insert is a slot that is
+ * empty in the older image, a delete one that is empty in the newer
+ * image, and an update one that holds a tuple in both.
+ */
+public class HeapPageDelta {
+
+    private final HeapPageId pid;
+    private final int[] slots;
+    // the bytes of each slot in the older and newer image, or null if
+    // the slot is empty in that image
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private HeapPageDelta(HeapPageId pid, int[] slots, byte[][] before,
+            byte[][] after) {
+        this.pid = pid;
+        this.slots = slots;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the change between two images of a page.
+     *
+     * @param before the older image
+     * @param after the newer image of the same page
+     */
+    public static HeapPageDelta diff(HeapPage before, HeapPage after) {
+        return diff(before, after, null);
+    }
+
+    /**
+     * Compute the change between two images of a page, restricted to some
+     * of its slots.
+     *
+     * @param before the older image
+     * @param after the newer image of the same page
+     * @param only the slots to compare, or null for all of them
+     */
+    public static HeapPageDelta diff(HeapPage before, HeapPage after,
+            Set<Integer> only) {
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        int size = after.td.getSize();
+        List<Integer> slots = new ArrayList<Integer>();
+        List<byte[]> befores = new ArrayList<byte[]>();
+        List<byte[]> afters = new ArrayList<byte[]>();
+        for (int i = 0; i < after.numSlots; i++) {
+            if (only != null && !only.contains(i))
+                continue;
+            boolean wasUsed = before.isSlotUsed(i);
+            boolean isUsed = after.isSlotUsed(i);
+            int off = after.header.length + i * size;
+            if (wasUsed == isUsed && (!isUsed || sameBytes(b, a, off, size)))
+                continue;
+            slots.add(i);
+            befores.add(wasUsed ? Arrays.copyOfRange(b, off, off + size) : null);
+            afters.add(isUsed ? Arrays.copyOfRange(a, off, off + size) : null);
+        }
+        int[] s = new int[slots.size()];
+        for (int i = 0; i < s.length; i++)
+            s[i] = slots.get(i);
+        return new HeapPageDelta(after.getId(), s,
+                befores.toArray(new byte[s.length][]),
+                afters.toArray(new byte[s.length][]));
+    }
+
+    private static boolean sameBytes(byte[] b, byte[] a, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** @return true if the two images agree on every slot compared */
+    public boolean isEmpty() {
+        return slots.length == 0;
+    }
+
+    /** @return the slots this delta changes */
+    public int[] getSlots() {
+        return slots.clone();
+    }
+
+    /** @return the page this delta changes */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Apply the delta to a page.
+     *
+     * @param p the page, as it is on disk
+     * @param redo true to set the slots to the newer image, false to set
+     *        them to the older one
+     * @return the page with the delta applied
+     */
+    public HeapPage apply(HeapPage p, boolean redo) throws IOException {
+        byte[] data = p.getPageData();
+        int size = p.td.getSize();
+        for (int k = 0; k < slots.length; k++) {
+            int i = slots[k];
+            byte[] image = redo ? after[k] : before[k];
+            // the header is a bitmap of the slots in use, as in HeapPage
+            if (image != null)
+                data[i / 8] |= (byte) (1 << (i % 8));
+            else
+                data[i / 8] &= (byte) ~(1 << (i % 8));
+            int off = p.header.length + i * size;
+            if (image != null)
+                System.arraycopy(image, 0, data, off, size);
+            else
+                Arrays.fill(data, off, off + size, (byte) 0);
+        }
+        return new HeapPage(pid, data);
+    }
+
+    /**
+     * Undo the delta on a page in place, setting its slots back to the
+     * older image and leaving the other slots alone, so that changes other
+     * transactions made to them are kept.  The page must be latched.
+     */
+    public void undo(HeapPage p) throws DbException {
+        for (int k = 0; k < slots.length; k++) {
+            int i = slots[k];
+            if (p.isSlotUsed(i))
+                p.clearSlot(i);
+            if (before[k] != null)
+                p.insertTuple(decode(p.td, before[k]), i);
+        }
+    }
+
+    private static Tuple decode(TupleDesc td, byte[] image) throws DbException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(image));
+        Tuple t = new Tuple(td);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parse(in));
+        } catch (java.text.ParseException e) {
+            throw new DbException("cannot decode logged tuple: " + e.getMessage());
+        }
+        return t;
+    }
+
+    /** Serialize the delta; {@link #read} reads it back. */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.pageNumber());
+        out.writeInt(slots.length);
+        for (int k = 0; k < slots.length; k++) {
+            out.writeInt(slots[k]);
+            writeSlot(out, before[k]);
+            writeSlot(out, after[k]);
+        }
+    }
+
+    private static void writeSlot(DataOutput out, byte[] image)
+            throws IOException {
+        out.writeInt(image == null ? -1 : image.length);
+        if (image != null)
+            out.write(image);
+    }
+
+    /** Read a delta written by {@link #write}. */
+    public static HeapPageDelta read(DataInput in) throws IOException {
+        HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+        int n = in.readInt();
+        int[] slots = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int k = 0; k < n; k++) {
+            slots[k] = in.readInt();
+            before[k] = readSlot(in);
+            after[k] = readSlot(in);
+        }
+        return new HeapPageDelta(pid, slots, before, after);
+    }
+
+    private static byte[] readSlot(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (len < 0)
+            return null;
+        byte[] image = new byte[len];
+        in.readFully(image);
+        return image;
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch (Flajolet et al.) that estimates the number of
+ * distinct values added to it, using 2^{@link #P} one-byte registers
+ * regardless of how many values there are. The standard error is about
+ * 1.04 / sqrt(2^P), i.e. 1.6% for P = 12.
+ * <p>
+ * Sketches can be updated one value at a time, and sketches of different
+ * parts of a table can be merged into a sketch of the whole table.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of index bits; the sketch has 2^P registers. */
+    public static final int P = 12;
+    static final int M = 1 << P;
+
+    private final byte[] registers = new byte[M];
+
+    // last estimate, valid unless registers have changed since
+    private transient long estimate;
+    private transient boolean estimated;
+
+    /** 64-bit hash of a field value. */
+    static long hash(Field f) {
+        long h;
+        if (f.getType() == Type.INT_TYPE) {
+            h = ((IntField) f).getValue();
+        } else {
+            // FNV-1a over the characters
+            String s = f.toString();
+            h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        // murmur3 fmix64, so that every bit depends on every input bit
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Add a value to this sketch.
+     */
+    public void add(Field f) {
+        long h = hash(f);
+        int idx = (int) (h >>> (64 - P));
+        // rank = position of the first 1 bit in the remaining bits
+        long w = (h << P) | (1L << (P - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (rank > registers[idx]) {
+            registers[idx] = rank;
+            estimated = false;
+        }
+    }
+
+    /**
+     * Merge another sketch into this one, so that this sketch estimates the
+     * number of distinct values added to either.
+     */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < M; i++)
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        estimated = false;
+    }
+
+    /**
+     * @return the estimated number of distinct values added to this sketch
+     */
+    public long estimate() {
+        if (estimated)
+            return estimate;
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < M; i++) {
+            sum += 1.0 / (1L << registers[i]);
+            if (registers[i] == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / M);
+        double e = alpha * M * M / sum;
+        // small cardinalities: linear counting is more accurate
+        if (e <= 2.5 * M && zeros > 0)
+            e = M * Math.log((double) M / zeros);
+        estimate = Math.round(e);
+        estimated = true;
+        return estimate;
+    }
+}
@@ -31,7 +31,7 @@ public class Insert extends Operator {
     public Insert(TransactionId t,DbIterator child, int tableid)
             throws DbException {
     	
-    	HeapFile currentFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+    	DbFile currentFile = Database.getCatalog().getDatabaseFile(tableid);
     	TupleDesc tableTupDesc = currentFile.getTupleDesc();
     	if (!child.getTupleDesc().equals(tableTupDesc)) 
     		throw new DbException("TupleDesc of child differs from table into which we are to insert.");
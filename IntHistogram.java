@@ -1,27 +1,78 @@
 package simpledb;
 
-/** A class to represent a fixed-width histogram over a single integer-based field.
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A class to represent a histogram over a single integer-based field.
+ * <p>
+ * The histogram is built from a uniform sample of at most
+ * {@link #SAMPLES_PER_BUCKET} values per bucket, so it uses constant space no
+ * matter how many values are added. When it is next used for estimation,
+ * the sample is summarized in two parts:
+ * <ul>
+ * <li>a list of most common values (MCVs), each of which occurs in more than
+ * 1/buckets of the sample, with its exact frequency in the sample;</li>
+ * <li>an equi-depth histogram over the remaining values: each bucket covers
+ * a range (lo, hi] holding about the same number of sampled values, and
+ * records that number and the number of distinct values in it.</li>
+ * </ul>
+ * Keeping the heavy hitters out of the buckets makes estimates on skewed
+ * (e.g. Zipfian) data much better than with fixed-width buckets.
  */
-public class IntHistogram {
+public class IntHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Sampled values kept per requested bucket. */
+    static final int SAMPLES_PER_BUCKET = 100;
+
+    private final int buckets;
+    private final int min;
+    private final int max;
+
+    // reservoir sample of the values added so far
+    private final int[] sample;
+    private int sampled;
+    private long total;
+    private final Random rand = new Random(0);
+
+    // summary of the sample, rebuilt when values have been added since
+    private transient boolean built;
+    private transient int[] mcvs;
+    private transient int[] mcvCounts;
+    private transient long lo0;
+    private transient int[] hi;
+    private transient int[] counts;
+    private transient int[] distinct;
 
     /**
      * Create a new IntHistogram.
-     * 
-     * This IntHistogram should maintain a histogram of integer values that it receives.
-     * It should split the histogram into "buckets" buckets.
-     * 
+     *
+     * This IntHistogram maintains a histogram of integer values that it
+     * receives, split into at most "buckets" buckets.
+     *
      * The values that are being histogrammed will be provided one-at-a-time through the "addValue()" function.
-     * 
-     * Your implementation should use space and have execution time that are both
-     * constant with respect to the number of values being histogrammed.  For example, you shouldn't 
-     * simply store every value that you see in a sorted list.
-     * 
+     *
      * @param buckets The number of buckets to split the input value into.
      * @param min The minimum integer value that will ever be passed to this class for histogramming
      * @param max The maximum integer value that will ever be passed to this class for histogramming
      */
     public IntHistogram(int buckets, int min, int max) {
-    	// some code goes here
+        this(buckets, min, max, buckets * SAMPLES_PER_BUCKET);
+    }
+
+    /**
+     * Create a new IntHistogram that samples up to sampleSize values.
+     *
+     * @see #IntHistogram(int, int, int)
+     */
+    public IntHistogram(int buckets, int min, int max, int sampleSize) {
+        this.buckets = Math.max(1, buckets);
+        this.min = min;
+        this.max = max;
+        this.sample = new int[Math.max(1, sampleSize)];
     }
 
     /**
@@ -29,44 +80,199 @@ public class IntHistogram {
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
-    	// some code goes here
+        if (sampled < sample.length) {
+            sample[sampled++] = v;
+        } else {
+            long r = (long) (rand.nextDouble() * (total + 1));
+            if (r < sample.length)
+                sample[(int) r] = v;
+        }
+        total++;
+        built = false;
+    }
+
+    /** @return the number of values added to this histogram */
+    public long count() {
+        return total;
+    }
+
+    /** Summarize the sample into MCVs and equi-depth buckets. */
+    private void build() {
+        if (built)
+            return;
+        int[] s = Arrays.copyOf(sample, sampled);
+        Arrays.sort(s);
+
+        // a value is common if it would fill more than a bucket on its own
+        int threshold = Math.max(1, sampled / buckets);
+        int[] mv = new int[buckets];
+        int[] mc = new int[buckets];
+        int nm = 0;
+        int[] rest = new int[s.length];
+        int nr = 0;
+        for (int i = 0; i < s.length;) {
+            int j = i;
+            while (j < s.length && s[j] == s[i])
+                j++;
+            if (j - i > threshold && nm < buckets) {
+                mv[nm] = s[i];
+                mc[nm] = j - i;
+                nm++;
+            } else {
+                for (int k = i; k < j; k++)
+                    rest[nr++] = s[k];
+            }
+            i = j;
+        }
+        mcvs = Arrays.copyOf(mv, nm);
+        mcvCounts = Arrays.copyOf(mc, nm);
+        lo0 = nr == 0 ? 0 : rest[0] - 1L;
+
+        // equi-depth buckets over the remaining values; equal values are
+        // never split across buckets
+        int nb = Math.max(1, Math.min(buckets, nr));
+        int[] h = new int[nb];
+        int[] c = new int[nb];
+        int[] d = new int[nb];
+        int b = 0;
+        int depth = (nr + nb - 1) / nb;
+        for (int i = 0; i < nr;) {
+            int j = i;
+            while (j < nr && rest[j] == rest[i])
+                j++;
+            if (c[b] >= depth && b < nb - 1)
+                b++;
+            c[b] += j - i;
+            d[b]++;
+            h[b] = rest[i];
+            i = j;
+        }
+        int used = nr == 0 ? 0 : b + 1;
+        hi = Arrays.copyOf(h, used);
+        counts = Arrays.copyOf(c, used);
+        distinct = Arrays.copyOf(d, used);
+        built = true;
+    }
+
+    /** @return the exclusive lower bound of bucket b */
+    private long lo(int b) {
+        return b == 0 ? lo0 : hi[b - 1];
+    }
+
+    /** @return the fraction of values equal to v */
+    private double equalTo(int v) {
+        int m = Arrays.binarySearch(mcvs, v);
+        if (m >= 0)
+            return (double) mcvCounts[m] / sampled;
+        for (int b = 0; b < hi.length; b++) {
+            if (v <= hi[b]) {
+                if (v <= lo(b))
+                    return 0.0;
+                return (double) counts[b] / distinct[b] / sampled;
+            }
+        }
+        return 0.0;
+    }
+
+    /** @return the fraction of values less than v */
+    private double lessThan(long v) {
+        double cnt = 0;
+        for (int i = 0; i < mcvs.length && mcvs[i] < v; i++)
+            cnt += mcvCounts[i];
+        for (int b = 0; b < hi.length; b++) {
+            long lo = lo(b);
+            if (hi[b] < v) {
+                cnt += counts[b];
+            } else {
+                // values lo+1 .. v-1 of the range, assumed uniform
+                if (v > lo + 1)
+                    cnt += counts[b] * (double) (v - lo - 1) / (hi[b] - lo);
+                break;
+            }
+        }
+        return cnt / sampled;
     }
 
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
-     * 
-     * For example, if "op" is "GREATER_THAN" and "v" is 5, 
+     *
+     * For example, if "op" is "GREATER_THAN" and "v" is 5,
      * return your estimate of the fraction of elements that are greater than 5.
-     * 
+     *
      * @param op Operator
      * @param v Value
      * @return Predicted selectivity of this particular operator and value
      */
     public double estimateSelectivity(Predicate.Op op, int v) {
-
-    	// some code goes here
-        return -1.0;
+        if (sampled == 0)
+            return 0.0;
+        build();
+        double sel;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            sel = equalTo(v);
+            break;
+        case NOT_EQUALS:
+            sel = 1.0 - equalTo(v);
+            break;
+        case LESS_THAN:
+            sel = lessThan(v);
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = lessThan(v + 1L);
+            break;
+        case GREATER_THAN:
+            sel = 1.0 - lessThan(v + 1L);
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1.0 - lessThan(v);
+            break;
+        default:
+            sel = 1.0;
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
     }
-    
+
     /**
      * @return
      *     the average selectivity of this histogram.
-     *     
-     *     This is not an indispensable method to implement the basic
-     *     join optimization. It may be needed if you want to
-     *     implement a more efficient optimization
+     *
+     *     This is the expected selectivity of an equality predicate on a
+     *     value drawn from the histogrammed distribution.
      * */
     public double avgSelectivity()
     {
-        // some code goes here
-        return 1.0;
+        if (sampled == 0)
+            return 1.0;
+        build();
+        double sel = 0;
+        for (int i = 0; i < mcvs.length; i++) {
+            double f = (double) mcvCounts[i] / sampled;
+            sel += f * f;
+        }
+        for (int b = 0; b < hi.length; b++) {
+            double f = (double) counts[b] / sampled;
+            sel += f * f / distinct[b];
+        }
+        return sel;
     }
-    
+
     /**
      * @return A string describing this histogram, for debugging purposes
      */
     public String toString() {
-        // some code goes here
-        return null;
+        if (sampled == 0)
+            return "IntHistogram[" + min + ", " + max + "] empty";
+        build();
+        StringBuffer sb = new StringBuffer();
+        sb.append("IntHistogram[" + min + ", " + max + "] " + total
+                + " values, " + sampled + " sampled; mcvs:");
+        for (int i = 0; i < mcvs.length; i++)
+            sb.append(" " + mcvs[i] + "x" + mcvCounts[i]);
+        sb.append("; buckets:");
+        for (int b = 0; b < hi.length; b++)
+            sb.append(" (" + lo(b) + "," + hi[b] + "]=" + counts[b] + "/" + distinct[b]);
+        return sb.toString();
     }
 }
@@ -84,6 +84,7 @@ public class Join extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         this._child1.rewind();
         this._child2.rewind();
+        needToRead = true;
     }
 
     /**
@@ -109,9 +110,7 @@ public class Join extends Operator {
     	// First time we run the program, we need to get the first tuple
     	if (needToRead) {
     		// so we check if child1 has a next
-    		if (this._child1.hasNext()) {
-    			hasNext = true;
-    		}
+    		hasNext = this._child1.hasNext();
     	}
 //    	System.out.println("in fetchNext: hasNext is " + hasNext + " and needToRead is " + needToRead);
     	
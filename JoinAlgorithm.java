@@ -0,0 +1,26 @@
+package simpledb;
+
+/**
+ * The physical operators a join can be performed with. The optimizer picks
+ * the cheapest for each join; see {@link JoinOptimizer#estimateJoinCost}.
+ */
+public enum JoinAlgorithm {
+    /** {@link Join}: the inner is scanned once per outer tuple. */
+    NESTED_LOOP,
+    /**
+     * {@link HashEquiJoin}: the outer is hashed in chunks of
+     * {@link HashEquiJoin#MAP_SIZE} tuples, and the inner is scanned once per
+     * chunk.
+     */
+    HASH,
+    /** {@link SortMergeJoin}: both sides are sorted in memory and merged. */
+    SORT_MERGE;
+
+    /**
+     * @return true if this algorithm can perform a join with operator op;
+     *         only nested loops can evaluate predicates other than EQUALS
+     */
+    public boolean supports(Predicate.Op op) {
+        return this == NESTED_LOOP || op == Predicate.Op.EQUALS;
+    }
+}
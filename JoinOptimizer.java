@@ -68,7 +68,12 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.algorithm == JoinAlgorithm.HASH)
+            j = new HashEquiJoin(p, plan1, plan2);
+        else if (lj.algorithm == JoinAlgorithm.SORT_MERGE)
+            j = new SortMergeJoin(p, plan1, plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
@@ -82,7 +87,9 @@ public class JoinOptimizer {
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
-     * 
+     * <p>
+     * The join is costed for its {@link LogicalJoinNode#algorithm}, or for
+     * the cheapest algorithm that can perform it if none is set.
      * 
      * @param j
      *            A LogicalJoinNode representing the join operation being
@@ -107,14 +114,63 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 4.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            JoinAlgorithm a = j.algorithm != null ? j.algorithm
+                    : chooseAlgorithm(j, card1, card2, cost1, cost2);
+            return estimateJoinCost(a, card1, card2, cost1, cost2);
+        }
+    }
+
+    /**
+     * Estimate the cost of a join performed with a given algorithm; see
+     * {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     */
+    public static double estimateJoinCost(JoinAlgorithm a, int card1,
+            int card2, double cost1, double cost2) {
+        switch (a) {
+        case HASH:
+            // hash the outer in chunks, and scan and probe with the inner
+            // once per chunk
+            double passes = Math.max(1,
+                    Math.ceil((double) card1 / HashEquiJoin.MAP_SIZE));
+            return cost1 + passes * cost2 + card1 + passes * card2;
+        case SORT_MERGE:
+            // read and sort both sides, then merge them
+            return cost1 + cost2 + sortCost(card1) + sortCost(card2) + card1
+                    + card2;
+        default:
+            // nested loops: scan the outer once, the inner once per outer
+            // tuple, and compare every pair
+            return cost1 + (double) card1 * cost2 + (double) card1 * card2;
         }
     }
 
+    /** @return the comparisons needed to sort card tuples */
+    private static double sortCost(int card) {
+        return card < 2 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * @return the cheapest algorithm that can perform the join j of inputs
+     *         with the given cardinalities and costs
+     */
+    public static JoinAlgorithm chooseAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        JoinAlgorithm best = JoinAlgorithm.NESTED_LOOP;
+        if (j instanceof LogicalSubplanJoinNode)
+            return best;
+        double bestCost = estimateJoinCost(best, card1, card2, cost1, cost2);
+        for (JoinAlgorithm a : JoinAlgorithm.values()) {
+            if (!a.supports(j.p))
+                continue;
+            double cost = estimateJoinCost(a, card1, card2, cost1, cost2);
+            if (cost < bestCost) {
+                best = a;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -149,15 +205,72 @@ public class JoinOptimizer {
 
     /**
      * Estimate the join cardinality of two tables.
+     * <p>
+     * An equality join matches each value of the side with fewer distinct
+     * values to a value of the other, so it produces about
+     * card1 * card2 / max(ndv1, ndv2) tuples, where the numbers of distinct
+     * values come from the tables' statistics. A join on a primary key
+     * produces at most one tuple per tuple of the other side. Range joins are
+     * assumed to keep 30% of the cross product.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
             String table1Alias, String table2Alias, String field1PureName,
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
-        return card <= 0 ? 1 : card;
+        long cross = (long) card1 * card2;
+        long eq;
+        long ndv1 = numDistinct(table1Alias, field1PureName, card1, stats,
+                tableAliasToId);
+        long ndv2 = numDistinct(table2Alias, field2PureName, card2, stats,
+                tableAliasToId);
+        if (ndv1 > 0 || ndv2 > 0)
+            eq = cross / Math.max(1, Math.max(ndv1, ndv2));
+        else
+            eq = Math.max(card1, card2);
+        if (t1pkey)
+            eq = Math.min(eq, card2);
+        if (t2pkey)
+            eq = Math.min(eq, card1);
+
+        long card;
+        switch (joinOp) {
+        case EQUALS:
+        case LIKE:
+            card = eq;
+            break;
+        case NOT_EQUALS:
+            card = cross - eq;
+            break;
+        default:
+            card = (long) (0.3 * cross);
+        }
+        card = Math.min(card, Integer.MAX_VALUE);
+        return card <= 0 ? 1 : (int) card;
+    }
+
+    /**
+     * @return the estimated number of distinct values of a field among card
+     *         tuples of a table, or 0 if there are no statistics for it
+     */
+    private static long numDistinct(String alias, String fieldPureName,
+            int card, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+        Integer id = tableAliasToId.get(alias);
+        if (id == null)
+            return 0;
+        TableStats s = stats.get(Database.getCatalog().getTableName(id));
+        if (s == null)
+            return 0;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(id)
+                    .fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+        // a filtered input cannot have more distinct values than tuples
+        return Math.min(s.numDistinct(field), Math.max(1, card));
     }
 
     /**
@@ -207,8 +320,11 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed. Each join comes after the joins
+     *         that build its two inputs, which need not be base tables: the
+     *         plan may be bushy. Each join's algorithm is set to the cheapest
+     *         for it.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -217,11 +333,417 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
+        int n = joins.size();
+        if (n == 0)
+            return joins;
+        indexJoins();
+        estimateBaseTables(stats, filterSelectivities);
+        long start = System.nanoTime();
+        long budget = planningBudgetMillis * 1000000L;
+
+        // exact dynamic programming while it is affordable, and otherwise a
+        // heuristic search that is polynomial in the number of joins
+        PlanCache pc = null;
+        Vector<LogicalJoinNode> order = null;
+        if (n <= MAX_DP_JOINS && aliasIndex.size() <= 64) {
+            pc = new PlanCache();
+            order = orderJoinsDP(stats, filterSelectivities, pc,
+                    start + budget / 4 * 3);
+        }
+        if (order == null) {
+            int[] best = orderJoinsGreedy(stats, filterSelectivities);
+            if (best == null) {
+                // the joins do not connect all the tables; leave them as given
+                return joins;
+            }
+            best = improveOrder(best, stats, filterSelectivities, start + budget);
+            order = new Vector<LogicalJoinNode>();
+            pc = n <= MAX_DP_JOINS ? new PlanCache() : null;
+            evaluateOrder(best, stats, filterSelectivities, Double.MAX_VALUE,
+                    order, pc);
+        }
+        if (explain) {
+            if (pc != null)
+                printJoins(order, (1L << n) - 1, pc, stats, filterSelectivities);
+            else
+                System.out.println(order);
+        }
+        return order;
+    }
+
+    /** Largest number of joins ordered by dynamic programming: join sets are
+     * bitmasks in a long. */
+    static final int MAX_DP_JOINS = 63;
+
+    /** Join sets that dynamic programming may cache before giving up. */
+    static final int MAX_DP_PLANS = 1 << 14;
+
+    private static volatile long planningBudgetMillis = 200;
+
+    /**
+     * Set the time that {@link #orderJoins} may spend on a query. Dynamic
+     * programming is abandoned for the heuristic search once three quarters
+     * of it are used, and the heuristic search stops improving its plan when
+     * it runs out.
+     */
+    public static void setPlanningBudget(long millis) {
+        planningBudgetMillis = millis;
+    }
+
+    /**
+     * Selinger's dynamic program, bottom up by the number of joins, over
+     * bushy plans. Only connected sets of joins are planned: the sets of k
+     * joins are found by adding a join to a cached set of k-1 joins that
+     * shares a table with it, so sets that would need a cross product are
+     * never considered. The best plan for a set is the cheapest over the join
+     * performed last; removing it splits the other joins into the subplans
+     * for its two inputs, which are cached already.
+     *
+     * @return the best order, or null if the joins do not connect
+     *         all the tables, or there were more than {@link #MAX_DP_PLANS}
+     *         connected sets, or the deadline passed
+     */
+    private Vector<LogicalJoinNode> orderJoinsDP(
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, PlanCache pc,
+            long deadline) {
+        int n = joins.size();
+        long[] level = new long[n];
+        int levelSize = 0;
+        for (int i = 0; i < n; i++) {
+            CostCard cc = computeCostAndCardOfSubplan(stats,
+                    filterSelectivities, i, 1L << i, Double.MAX_VALUE, pc);
+            if (cc != null) {
+                pc.addPlan(1L << i, cc.cost, cc.card, i, 0, cc.join);
+                level[levelSize++] = 1L << i;
+            }
+        }
+        for (int size = 2; size <= n; size++) {
+            // the connected sets of size joins, without duplicates
+            long[] next = new long[16];
+            int nextSize = 0;
+            for (int k = 0; k < levelSize; k++) {
+                long set = level[k];
+                long tables = tablesOf(set);
+                for (int i = 0; i < n; i++) {
+                    long bit = 1L << i;
+                    if ((set & bit) != 0 || (joinTables[i] & tables) == 0)
+                        continue;
+                    if (nextSize == next.length)
+                        next = Arrays.copyOf(next, nextSize * 2);
+                    next[nextSize++] = set | bit;
+                }
+            }
+            Arrays.sort(next, 0, nextSize);
+
+            levelSize = 0;
+            for (int k = 0; k < nextSize; k++) {
+                long joinSet = next[k];
+                if (k > 0 && joinSet == next[k - 1])
+                    continue;
+                if (pc.size() > MAX_DP_PLANS || System.nanoTime() > deadline)
+                    return null;
+                CostCard best = null;
+                int bestJoin = -1;
+                for (long s = joinSet; s != 0; s &= s - 1) {
+                    int i = Long.numberOfTrailingZeros(s);
+                    CostCard cc = computeCostAndCardOfSubplan(stats,
+                            filterSelectivities, i, joinSet,
+                            best == null ? Double.MAX_VALUE : best.cost, pc);
+                    if (cc != null) {
+                        best = cc;
+                        bestJoin = i;
+                    }
+                }
+                if (best != null) {
+                    pc.addPlan(joinSet, best.cost, best.card, bestJoin,
+                            best.left, best.join);
+                    next[levelSize++] = joinSet;
+                }
+            }
+            level = next;
+        }
+        return pc.getOrder((1L << n) - 1);
+    }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+    /**
+     * Greedy ordering: start with the join with the smallest result, and
+     * repeatedly add the join connected to the tables joined so far that
+     * keeps the intermediate result smallest (the cheapest on ties).
+     *
+     * @return the order, as indexes into joins, or null if the joins do not
+     *         connect all the tables
+     */
+    private int[] orderJoinsGreedy(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) {
+        int n = joins.size();
+        int[] order = new int[n];
+        boolean[] used = new boolean[n];
+        boolean[] joined = new boolean[aliasIndex.size()];
+        CostCard prev = null;
+        boolean prevPkey = false;
+        for (int step = 0; step < n; step++) {
+            CostCard best = null;
+            int bestJoin = -1;
+            for (int i = 0; i < n; i++) {
+                if (used[i])
+                    continue;
+                CostCard cc = computeCostAndCardOfJoin(stats,
+                        filterSelectivities, i, prev, joined, prevPkey,
+                        Double.MAX_VALUE);
+                if (cc != null && (best == null || cc.card < best.card
+                        || (cc.card == best.card && cc.cost < best.cost))) {
+                    best = cc;
+                    bestJoin = i;
+                }
+            }
+            if (best == null)
+                return null;
+            order[step] = bestJoin;
+            used[bestJoin] = true;
+            markJoined(bestJoin, joined);
+            prevPkey |= leftPkeys[bestJoin] || rightPkeys[bestJoin];
+            prev = best;
+        }
+        return order;
+    }
+
+    /**
+     * Iterative improvement: apply random moves (swapping two joins, or
+     * moving one to another position) to the order, keeping those that make
+     * it cheaper, until the deadline passes or n^2 moves in a row fail.
+     *
+     * @return the best order found
+     */
+    private int[] improveOrder(int[] order, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, long deadline) {
+        int n = order.length;
+        if (n < 2)
+            return order;
+        Random rand = new Random(0);
+        double bestCost = evaluateOrder(order, stats, filterSelectivities,
+                Double.MAX_VALUE, null, null);
+        int[] cand = new int[n];
+        int failures = 0;
+        while (failures < n * n && System.nanoTime() < deadline) {
+            System.arraycopy(order, 0, cand, 0, n);
+            int a = rand.nextInt(n);
+            int b = rand.nextInt(n - 1);
+            if (b >= a)
+                b++;
+            if (rand.nextBoolean()) {
+                int tmp = cand[a];
+                cand[a] = cand[b];
+                cand[b] = tmp;
+            } else {
+                int moved = cand[a];
+                if (a < b)
+                    System.arraycopy(cand, a + 1, cand, a, b - a);
+                else
+                    System.arraycopy(cand, b, cand, b + 1, a - b);
+                cand[b] = moved;
+            }
+            // orders that need a cross product or cost more are abandoned
+            // as soon as a prefix shows it
+            double cost = evaluateOrder(cand, stats, filterSelectivities,
+                    bestCost, null, null);
+            if (cost < bestCost) {
+                bestCost = cost;
+                int[] tmp = order;
+                order = cand;
+                cand = tmp;
+                failures = 0;
+            } else {
+                failures++;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Compute the cost of performing the joins in the given left-deep order:
+     * each join after the first joins the result of the joins before it with
+     * a base table.
+     *
+     * @param bound
+     *            stop and return infinity once the cost reaches this
+     * @param plan
+     *            if not null, the joins are added to it, with inner and outer
+     *            as they should be performed
+     * @param pc
+     *            if not null, the plan of each prefix of the order is added
+     *            to it
+     * @return the cost, or infinity if the order needs a cross product or
+     *         costs at least bound
+     */
+    private double evaluateOrder(int[] order, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, double bound,
+            Vector<LogicalJoinNode> plan, PlanCache pc) {
+        boolean[] joined = new boolean[aliasIndex.size()];
+        CostCard prev = null;
+        boolean prevPkey = false;
+        long prefix = 0;
+        for (int i : order) {
+            CostCard cc = computeCostAndCardOfJoin(stats, filterSelectivities,
+                    i, prev, joined, prevPkey, bound);
+            if (cc == null)
+                return Double.POSITIVE_INFINITY;
+            markJoined(i, joined);
+            prevPkey |= leftPkeys[i] || rightPkeys[i];
+            prev = cc;
+            if (plan != null)
+                plan.add(cc.join);
+            if (pc != null) {
+                pc.addPlan(prefix | 1L << i, cc.cost, cc.card, i, prefix,
+                        cc.join);
+                prefix |= 1L << i;
+            }
+        }
+        return prev.cost;
+    }
+
+    /** Mark the tables of a join as joined. */
+    private void markJoined(int i, boolean[] joined) {
+        joined[t1Index[i]] = true;
+        if (t2Index[i] >= 0)
+            joined[t2Index[i]] = true;
+    }
+
+    // per join: the names of the tables it joins, the join with inner and
+    // outer swapped, the indexes of its tables among the aliases in the
+    // query and (if there are at most 64 aliases) the bitmask of them, and
+    // whether each side is joined on its primary key
+    private HashMap<String, Integer> aliasIndex;
+    private String[] t1Names;
+    private String[] t2Names;
+    private LogicalJoinNode[] swapped;
+    private int[] t1Index;
+    private int[] t2Index;
+    private long[] joinTables;
+    private boolean[] leftPkeys;
+    private boolean[] rightPkeys;
+    private long pkeyJoins;
+
+    // per join: the scan cost and filtered cardinality of each of its tables
+    private double[] t1Costs;
+    private int[] t1Cards;
+    private double[] t2Costs;
+    private int[] t2Cards;
+
+    /**
+     * Estimate the cost of scanning each table and the number of its tuples
+     * that pass the filters.
+     *
+     * @throws ParsingException
+     *             if a join is on an unknown table
+     */
+    private void estimateBaseTables(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        int n = joins.size();
+        t1Costs = new double[n];
+        t1Cards = new int[n];
+        t2Costs = new double[n];
+        t2Cards = new int[n];
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            if (t1Names[i] == null)
+                throw new ParsingException("Unknown table " + j.t1Alias);
+            if (t2Names[i] == null)
+                throw new ParsingException("Unknown table " + j.t2Alias);
+            TableStats s1 = stats.get(t1Names[i]);
+            t1Costs[i] = s1.estimateScanCost();
+            t1Cards[i] = s1.estimateTableCardinality(
+                    filterSelectivities.get(j.t1Alias));
+            TableStats s2 = stats.get(t2Names[i]);
+            t2Costs[i] = s2.estimateScanCost();
+            t2Cards[i] = s2.estimateTableCardinality(
+                    filterSelectivities.get(j.t2Alias));
+        }
+    }
+
+    /**
+     * Number the aliases and precompute the tables and primary keys of each
+     * join, so that the catalog is not searched for every subplan.
+     */
+    private void indexJoins() {
+        int n = joins.size();
+        aliasIndex = new HashMap<String, Integer>();
+        t1Names = new String[n];
+        t2Names = new String[n];
+        swapped = new LogicalJoinNode[n];
+        t1Index = new int[n];
+        t2Index = new int[n];
+        joinTables = new long[n];
+        leftPkeys = new boolean[n];
+        rightPkeys = new boolean[n];
+        pkeyJoins = 0;
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            swapped[i] = j.swapInnerOuter();
+            t1Index[i] = aliasIndex(j.t1Alias);
+            t2Index[i] = j.t2Alias == null ? -1 : aliasIndex(j.t2Alias);
+            joinTables[i] = aliasBit(t1Index[i]);
+            if (t2Index[i] >= 0)
+                joinTables[i] |= aliasBit(t2Index[i]);
+            Integer t1 = p.getTableId(j.t1Alias);
+            Integer t2 = p.getTableId(j.t2Alias);
+            if (t1 != null) {
+                t1Names[i] = Database.getCatalog().getTableName(t1);
+                leftPkeys[i] = isPkey(j.t1Alias, j.f1PureName);
+            }
+            if (t2 != null) {
+                t2Names[i] = Database.getCatalog().getTableName(t2);
+                rightPkeys[i] = isPkey(j.t2Alias, j.f2PureName);
+            }
+            if ((leftPkeys[i] || rightPkeys[i]) && i < 64)
+                pkeyJoins |= 1L << i;
+        }
+    }
+
+    /** @return the number of an alias, numbering it if new */
+    private int aliasIndex(String alias) {
+        Integer i = aliasIndex.get(alias);
+        if (i == null) {
+            i = aliasIndex.size();
+            aliasIndex.put(alias, i);
+        }
+        return i;
+    }
+
+    /** @return the bit of an alias in a table bitmask */
+    private static long aliasBit(int index) {
+        return index >= 0 && index < 64 ? 1L << index : 0;
+    }
+
+    /**
+     * @return the joins of joinSet that are connected to a table through
+     *         joins of joinSet
+     */
+    private long component(long joinSet, int table) {
+        long comp = 0;
+        long tables = aliasBit(table);
+        boolean grew = true;
+        while (grew) {
+            grew = false;
+            for (long s = joinSet & ~comp; s != 0; s &= s - 1) {
+                int k = Long.numberOfTrailingZeros(s);
+                if ((joinTables[k] & tables) != 0) {
+                    comp |= 1L << k;
+                    tables |= joinTables[k];
+                    grew = true;
+                }
+            }
+        }
+        return comp;
+    }
+
+    /** @return the tables joined by a set of joins, as a bitmask */
+    private long tablesOf(long joinSet) {
+        long tables = 0;
+        for (long s = joinSet; s != 0; s &= s - 1)
+            tables |= joinTables[Long.numberOfTrailingZeros(s)];
+        return tables;
     }
 
     // ===================== Private Methods =================================
@@ -231,6 +753,11 @@ public class JoinOptimizer {
      * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
      * all of the subsets of size joinSet.size() - 1 have already been computed
      * and stored in PlanCache pc.
+     * <p>
+     * joinToRemove is performed last. The other joins of joinSet split into
+     * those connected to its first table and those connected to its second,
+     * which build its two inputs; if either is empty, that input is the base
+     * table.
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
@@ -240,127 +767,141 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      * @param joinToRemove
-     *            the join to remove from joinSet
+     *            the index of the join to remove from joinSet
      * @param joinSet
-     *            the set of joins being considered
+     *            the set of joins being considered, as a bitmask over the
+     *            indexes of the joins
      * @param bestCostSoFar
      *            the best way to join joinSet so far (minimum of previous
      *            invocations of computeCostAndCardOfSubplan for this joinSet,
      *            from returned CostCard)
      * @param pc
      *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
+     *            connected subsets of joinSet
      * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     *         optimal subplan, or null if it is no better than bestCostSoFar
+     *         or would need a cross product
      */
-    @SuppressWarnings("unchecked")
     private CostCard computeCostAndCardOfSubplan(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
+            int joinToRemove, long joinSet,
+            double bestCostSoFar, PlanCache pc) {
+        int i = joinToRemove;
+        long news = joinSet & ~(1L << i);
+        long left = component(news, t1Index[i]);
+        long right = news & ~left;
+        long t2bit = aliasBit(t2Index[i]);
+
+        CostCard cc;
+        if (left != 0 && (tablesOf(left) & t2bit) != 0) {
+            // both tables are joined already (the joins form a cycle):
+            // perform this join after all the others, with a scan of t2
+            if (right != 0 || !pc.contains(left))
+                return null;
+            cc = joinCost(stats, i, pc.getCost(left), pc.getCard(left),
+                    (left & pkeyJoins) != 0, t2Costs[i], t2Cards[i],
+                    rightPkeys[i], bestCostSoFar);
         } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
+            // the rest must all be connected to t2, or there is a cross
+            // product
+            if (right != 0 && component(right, t2Index[i]) != right)
                 return null;
-            }
-
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
+            if ((left != 0 && !pc.contains(left))
+                    || (right != 0 && !pc.contains(right)))
                 return null;
-            }
+            double cost1 = left == 0 ? t1Costs[i] : pc.getCost(left);
+            int card1 = left == 0 ? t1Cards[i] : pc.getCard(left);
+            boolean pkey1 = left == 0 ? leftPkeys[i] : (left & pkeyJoins) != 0;
+            double cost2 = right == 0 ? t2Costs[i] : pc.getCost(right);
+            int card2 = right == 0 ? t2Cards[i] : pc.getCard(right);
+            boolean pkey2 = right == 0 ? rightPkeys[i]
+                    : (right & pkeyJoins) != 0;
+            cc = joinCost(stats, i, cost1, card1, pkey1, cost2, card2, pkey2,
+                    bestCostSoFar);
+        }
+        if (cc != null)
+            cc.left = left;
+        return cc;
+    }
+
+    /**
+     * Compute the cost and cardinality of performing a join after a left-deep
+     * plan, or on its own.
+     *
+     * @param i
+     *            the index of the join
+     * @param prev
+     *            the cost and cardinality of the plan performed before, or
+     *            null if there is none
+     * @param joined
+     *            the tables joined by prev, indexed by alias number
+     * @param prevPkey
+     *            whether prev joins a table on its primary key
+     * @param bestCostSoFar
+     *            return null unless the cost is below this
+     * @return the cost and cardinality, or null if the cost is too high or
+     *         the join shares no table with prev (a cross product)
+     */
+    private CostCard computeCostAndCardOfJoin(
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, int i,
+            CostCard prev, boolean[] joined, boolean prevPkey,
+            double bestCostSoFar) {
+        if (prev == null) { // base case -- both are base relations
+            return joinCost(stats, i, t1Costs[i], t1Cards[i], leftPkeys[i],
+                    t2Costs[i], t2Cards[i], rightPkeys[i], bestCostSoFar);
+        } else if (joined[t1Index[i]]) { // j.t1 is in prevBest
+            return joinCost(stats, i, prev.cost, prev.card, prevPkey,
+                    t2Costs[i], t2Cards[i], rightPkeys[i], bestCostSoFar);
+        } else if (t2Index[i] >= 0 && joined[t2Index[i]]) { // j.t2 is in prevbest
+            return joinCost(stats, i, t1Costs[i], t1Cards[i], leftPkeys[i],
+                    prev.cost, prev.card, prevPkey, bestCostSoFar);
+        } else {
+            // don't consider this plan if one of j.t1 or j.t2
+            // isn't a table joined in prevBest (cross product)
+            return null;
         }
+    }
 
-        // case where prevbest is left
+    /**
+     * Compute the cost and cardinality of a join of two inputs, with the
+     * inputs as inner and outer in whichever order is cheaper, and the
+     * cheapest algorithm for that order.
+     *
+     * @param i
+     *            the index of the join
+     * @param t1cost
+     *            the cost of computing the input with the join's first table
+     * @param t1card
+     *            the cardinality of that input
+     * @param leftPkey
+     *            whether that input is joined on a primary key
+     * @param bestCostSoFar
+     *            return null unless the cost is below this
+     * @return the cost and cardinality, or null if the cost is too high
+     */
+    private CostCard joinCost(HashMap<String, TableStats> stats, int i,
+            double t1cost, int t1card, boolean leftPkey, double t2cost,
+            int t2card, boolean rightPkey, double bestCostSoFar) {
+        LogicalJoinNode j = joins.get(i);
+        JoinAlgorithm a = chooseAlgorithm(j, t1card, t2card, t1cost, t2cost);
         double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
+        LogicalJoinNode j2 = swapped[i];
+        JoinAlgorithm a2 = chooseAlgorithm(j2, t2card, t1card, t2cost, t1cost);
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
+            a = a2;
             cost1 = cost2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
+            int tmpCard = t1card;
+            t1card = t2card;
+            t2card = tmpCard;
         }
         if (cost1 >= bestCostSoFar)
             return null;
@@ -370,24 +911,10 @@ public class JoinOptimizer {
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
                 rightPkey, stats);
         cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        cc.join = j.withAlgorithm(a);
         return cc;
     }
 
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
-        }
-        return false;
-    }
-
     /**
      * Return true if field is a primary key of the specified table, false
      * otherwise
@@ -404,20 +931,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -425,6 +938,8 @@ public class JoinOptimizer {
      * 
      * @param js
      *            the join plan to visualize
+     * @param all
+     *            the set of all the joins, as a bitmask
      * @param pc
      *            the PlanCache accumulated whild building the optimal plan
      * @param stats
@@ -434,7 +949,7 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      */
-    private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
+    private void printJoins(Vector<LogicalJoinNode> js, long all, PlanCache pc,
             HashMap<String, TableStats> stats,
             HashMap<String, Double> selectivities) {
 
@@ -454,13 +969,15 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
-        boolean neither;
+
+        // the joins of the subplan that each join of the plan completes
+        long[] pathsSoFar = pc.getSubplans(all);
 
         System.out.println(js);
-        for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+        for (int i = 0; i < js.size(); i++) {
+            LogicalJoinNode j = js.get(i);
+            long pathSoFar = pathsSoFar[i];
+            System.out.println("PATH SO FAR = " + js.subList(0, i + 1));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
@@ -468,12 +985,12 @@ public class JoinOptimizer {
                     this.p.getTableId(j.t2Alias));
 
             // Double c = pc.getCost(pathSoFar);
-            neither = true;
 
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
                     + pc.getCost(pathSoFar) + ", card = "
                     + pc.getCard(pathSoFar) + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
+            DefaultMutableTreeNode left = n;
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
@@ -485,11 +1002,11 @@ public class JoinOptimizer {
             } else {
                 // make left child root n
                 root.add(n);
-                neither = false;
             }
             m.put(j.t1Alias, root);
 
             n = m.get(j.t2Alias);
+            DefaultMutableTreeNode right = n;
             if (n == null) { // never seen this table before
 
                 n = new DefaultMutableTreeNode(
@@ -507,16 +1024,13 @@ public class JoinOptimizer {
             } else {
                 // make right child root n
                 root.add(n);
-                neither = false;
             }
             m.put(j.t2Alias, root);
 
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
-            if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
-                }
+            // the tables under either child are now accessed from root
+            for (Map.Entry<String, DefaultMutableTreeNode> e : m.entrySet()) {
+                if (e.getValue() == left || e.getValue() == right)
+                    e.setValue(root);
             }
 
             treetop = root;
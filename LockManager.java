@@ -0,0 +1,476 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * LockManager keeps the locks that {@link BufferPool} acquires on behalf of
+ * transactions. Tables, pages and tuples (keyed by their table id, PageId
+ * and RecordId) can be locked in any of the modes of {@link Mode}, so that
+ * a transaction can lock single tuples under intention locks on their page
+ * and table. A transaction that asks for a stronger mode on a lock it holds
+ * upgrades it. Locks are held until the transaction completes (strict
+ * two-phase locking).
+ * <p>
+ * The holders of a lock are kept in an immutable snapshot that is swapped
+ * with a compare-and-set, and the lock table is a ConcurrentHashMap split
+ * into many segments, so acquiring an uncontended lock takes no monitor.
+ * Only transactions that have to wait synchronize, on the lock they wait
+ * for.
+ * <p>
+ * Deadlocks are detected with a waits-for graph: a blocked transaction
+ * waits for the holders of the lock it wants. Each time a transaction
+ * blocks, the graph is searched for a cycle through it, and the youngest
+ * transaction on the cycle is aborted.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /**
+     * Lock modes. S and X are shared and exclusive locks; IS and IX are
+     * intention locks, taken on a table or page before locking the pages or
+     * tuples in it in S or X mode; SIX is S and IX together.
+     */
+    public enum Mode {
+        IS, IX, S, SIX, X;
+
+        // COMPATIBLE[a][b]: a holder in mode a lets another take mode b
+        private static final boolean[][] COMPATIBLE = {
+            //         IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return true if a holder in this mode lets another take mode m */
+        public boolean isCompatible(Mode m) {
+            return COMPATIBLE[ordinal()][m.ordinal()];
+        }
+
+        /** @return the weakest mode that grants this mode and m */
+        public Mode join(Mode m) {
+            if (this == m || m == IS)
+                return this;
+            if (this == IS)
+                return m;
+            if (this == X || m == X)
+                return X;
+            return SIX; // IX, S and SIX together
+        }
+
+        /** @return true if a holder in this mode may modify what it locks */
+        public boolean isWrite() {
+            return this == IX || this == SIX || this == X;
+        }
+
+        /** @return S for READ_ONLY and X for READ_WRITE */
+        public static Mode of(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? X : S;
+        }
+
+        /** @return IS for READ_ONLY and IX for READ_WRITE */
+        public static Mode intention(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? IX : IS;
+        }
+    }
+
+    private static final TransactionId[] NONE = new TransactionId[0];
+
+    /** The transactions holding a lock. Never modified once created. */
+    private static final class Holders {
+        static final Holders FREE = new Holders(NONE, new Mode[0]);
+        /** held by locks dropped from the lock table, which no one can take */
+        static final Holders DEAD = new Holders(NONE, new Mode[0]);
+
+        final TransactionId[] tids;
+        /** modes[i] is the mode tids[i] holds the lock in */
+        final Mode[] modes;
+
+        Holders(TransactionId[] tids, Mode[] modes) {
+            this.tids = tids;
+            this.modes = modes;
+        }
+
+        private int indexOf(TransactionId tid) {
+            for (int i = 0; i < tids.length; i++)
+                if (tids[i].equals(tid))
+                    return i;
+            return -1;
+        }
+
+        /** @return the mode tid holds the lock in, or null */
+        Mode mode(TransactionId tid) {
+            int i = indexOf(tid);
+            return i < 0 ? null : modes[i];
+        }
+
+        /** @return true if some holder may modify what the lock covers */
+        boolean isWriteLocked() {
+            for (Mode m : modes)
+                if (m.isWrite())
+                    return true;
+            return false;
+        }
+
+        /**
+         * @return the holders once tid is granted the lock in mode (this if
+         *         tid already holds it in a mode that covers mode), or null
+         *         if tid has to wait
+         */
+        Holders grant(TransactionId tid, Mode mode) {
+            int i = indexOf(tid);
+            Mode m = i < 0 ? mode : modes[i].join(mode);
+            if (i >= 0 && m == modes[i])
+                return this;
+            for (int j = 0; j < tids.length; j++)
+                if (j != i && !modes[j].isCompatible(m))
+                    return null;
+            if (i >= 0) {
+                Mode[] ms = modes.clone();
+                ms[i] = m;
+                return new Holders(tids, ms);
+            }
+            TransactionId[] ts = Arrays.copyOf(tids, tids.length + 1);
+            Mode[] ms = Arrays.copyOf(modes, modes.length + 1);
+            ts[tids.length] = tid;
+            ms[modes.length] = m;
+            return new Holders(ts, ms);
+        }
+
+        /** @return the holders once tid gives up the lock */
+        Holders release(TransactionId tid) {
+            int i = indexOf(tid);
+            if (i < 0)
+                return this;
+            if (tids.length == 1)
+                return FREE;
+            TransactionId[] ts = new TransactionId[tids.length - 1];
+            Mode[] ms = new Mode[modes.length - 1];
+            System.arraycopy(tids, 0, ts, 0, i);
+            System.arraycopy(tids, i + 1, ts, i, ts.length - i);
+            System.arraycopy(modes, 0, ms, 0, i);
+            System.arraycopy(modes, i + 1, ms, i, ms.length - i);
+            return new Holders(ts, ms);
+        }
+    }
+
+    /**
+     * The lock on one table, page or tuple. Waiting transactions wait on its monitor and
+     * count themselves in waiters, so that releases only notify when someone
+     * is waiting.
+     */
+    private static final class Lock extends AtomicReference<Holders> {
+        private static final long serialVersionUID = 1L;
+        final AtomicInteger waiters = new AtomicInteger();
+
+        Lock() {
+            super(Holders.FREE);
+        }
+    }
+
+    private final ConcurrentHashMap<Object, Lock> locks =
+            new ConcurrentHashMap<Object, Lock>(256, 0.75f, 64);
+    private final ConcurrentHashMap<TransactionId, Set<Object>> locked =
+            new ConcurrentHashMap<TransactionId, Set<Object>>();
+
+    /** The waits-for graph: the lock each blocked transaction waits for */
+    private final HashMap<TransactionId, Lock> waitsFor =
+            new HashMap<TransactionId, Lock>();
+    /** Blocked transactions chosen to break a deadlock, which must abort */
+    private final Set<TransactionId> victims = Collections.newSetFromMap(
+            new ConcurrentHashMap<TransactionId, Boolean>());
+
+    private Lock lockFor(Object resource) {
+        while (true) {
+            Lock l = locks.get(resource);
+            if (l == null) {
+                Lock n = new Lock();
+                l = locks.putIfAbsent(resource, n);
+                if (l == null)
+                    return n;
+            }
+            if (l.get() != Holders.DEAD)
+                return l;
+            locks.remove(resource, l);
+        }
+    }
+
+    /**
+     * Drop a lock from the lock table once nobody holds or waits for it, so
+     * that the table only keeps the locks in use. Transactions that looked
+     * the lock up before it was dropped find it dead, and look it up again.
+     */
+    private void discard(Object resource, Lock l) {
+        if (l.waiters.get() == 0 && l.compareAndSet(Holders.FREE, Holders.DEAD))
+            locks.remove(resource, l);
+    }
+
+    private static boolean tryAcquire(Lock l, TransactionId tid, Mode mode) {
+        while (true) {
+            Holders h = l.get();
+            if (h == Holders.DEAD)
+                return false;
+            Holders n = h.grant(tid, mode);
+            if (n == null)
+                return false;
+            if (n == h || l.compareAndSet(h, n))
+                return true;
+        }
+    }
+
+    /**
+     * Acquire a lock for a transaction, waiting for conflicting holders to
+     * release it.
+     *
+     * @param tid the transaction requesting the lock
+     * @param resource the table id, PageId or RecordId to lock
+     * @param mode the mode to lock it in
+     * @throws TransactionAbortedException if waiting for the lock would
+     *             deadlock, and tid is the youngest transaction on the cycle
+     */
+    public void acquire(TransactionId tid, Object resource, Mode mode)
+            throws TransactionAbortedException {
+        while (true) {
+            Lock l = lockFor(resource);
+            if (tryAcquire(l, tid, mode))
+                break;
+            if (l.get() != Holders.DEAD && waitFor(l, tid, mode))
+                break;
+        }
+        lockedBy(tid).add(resource);
+    }
+
+    /**
+     * Acquire a lock for a transaction if that does not require waiting.
+     *
+     * @return true if the lock was acquired
+     */
+    public boolean tryAcquire(TransactionId tid, Object resource, Mode mode) {
+        while (true) {
+            Lock l = lockFor(resource);
+            if (tryAcquire(l, tid, mode))
+                break;
+            if (l.get() != Holders.DEAD)
+                return false;
+        }
+        lockedBy(tid).add(resource);
+        return true;
+    }
+
+    private Set<Object> lockedBy(TransactionId tid) {
+        Set<Object> rs = locked.get(tid);
+        if (rs == null) {
+            Set<Object> n = Collections.newSetFromMap(
+                    new ConcurrentHashMap<Object, Boolean>());
+            rs = locked.putIfAbsent(tid, n);
+            if (rs == null)
+                rs = n;
+        }
+        return rs;
+    }
+
+    /**
+     * Wait until tid is granted l.
+     *
+     * @return true once it is, or false if l was dropped from the lock
+     *         table, and has to be looked up again
+     */
+    private boolean waitFor(Lock l, TransactionId tid, Mode mode)
+            throws TransactionAbortedException {
+        try {
+            while (true) {
+                TransactionId victim = block(tid, l);
+                if (victim != null) {
+                    if (victim.equals(tid))
+                        throw new TransactionAbortedException();
+                    abort(victim);
+                }
+                synchronized (l) {
+                    // counting ourselves before retrying means that a release
+                    // either happens before the retry or sees us and notifies
+                    l.waiters.incrementAndGet();
+                    try {
+                        if (tryAcquire(l, tid, mode))
+                            return true;
+                        if (l.get() == Holders.DEAD)
+                            return false;
+                        if (victims.contains(tid))
+                            throw new TransactionAbortedException();
+                        l.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    } finally {
+                        l.waiters.decrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            // once tid stops waiting it is no longer on any cycle
+            synchronized (waitsFor) {
+                waitsFor.remove(tid);
+                victims.remove(tid);
+            }
+        }
+    }
+
+    /**
+     * Record that tid waits for l, and look for a deadlock this causes.
+     *
+     * @return the youngest transaction on a cycle through tid in the
+     *         waits-for graph, or null if there is none
+     */
+    private TransactionId block(TransactionId tid, Lock l) {
+        synchronized (waitsFor) {
+            waitsFor.put(tid, l);
+            ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+            if (!findPath(tid, tid, new HashSet<TransactionId>(), cycle))
+                return null;
+            TransactionId youngest = tid;
+            for (TransactionId t : cycle)
+                if (t.getId() > youngest.getId())
+                    youngest = t;
+            return youngest;
+        }
+    }
+
+    /**
+     * Depth-first search of the waits-for graph for a path from a
+     * transaction to target. Only blocked transactions have edges, so the
+     * search only visits the transactions that the new edges lead to.
+     *
+     * @param path the transactions on the path found, starting with from
+     * @return true if a path was found
+     */
+    private boolean findPath(TransactionId from, TransactionId target,
+            Set<TransactionId> visited, List<TransactionId> path) {
+        Lock l = waitsFor.get(from);
+        if (l == null)
+            return false;
+        path.add(from);
+        for (TransactionId t : l.get().tids) {
+            if (t.equals(from))
+                continue; // waiting to upgrade its own shared lock
+            if (t.equals(target))
+                return true;
+            if (visited.add(t) && findPath(t, target, visited, path))
+                return true;
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    /** Make a blocked transaction give up waiting and abort. */
+    private void abort(TransactionId victim) {
+        Lock l;
+        synchronized (waitsFor) {
+            l = waitsFor.get(victim);
+            if (l != null)
+                victims.add(victim);
+        }
+        if (l != null) {
+            synchronized (l) {
+                l.notifyAll();
+            }
+        }
+    }
+
+    private static void release(Lock l, TransactionId tid) {
+        while (true) {
+            Holders h = l.get();
+            Holders n = h.release(tid);
+            if (n == h || l.compareAndSet(h, n))
+                break;
+        }
+        if (l.waiters.get() > 0) {
+            synchronized (l) {
+                l.notifyAll();
+            }
+        }
+    }
+
+    /** Release the lock a transaction holds on a resource, if any. */
+    public void release(TransactionId tid, Object resource) {
+        Set<Object> rs = locked.get(tid);
+        if (rs != null)
+            rs.remove(resource);
+        Lock l = locks.get(resource);
+        if (l != null) {
+            release(l, tid);
+            discard(resource, l);
+        }
+    }
+
+    /** Release all the locks a transaction holds. */
+    public void releaseAll(TransactionId tid) {
+        victims.remove(tid);
+        Set<Object> rs = locked.remove(tid);
+        if (rs == null)
+            return;
+        for (Object r : rs) {
+            Lock l = locks.get(r);
+            if (l != null) {
+                release(l, tid);
+                discard(r, l);
+            }
+        }
+    }
+
+    /** @return true if the transaction holds a lock on the resource */
+    public boolean holdsLock(TransactionId tid, Object resource) {
+        return lockMode(tid, resource) != null;
+    }
+
+    /**
+     * @return the mode the transaction holds the lock on the resource in, or
+     *         null if it does not hold it
+     */
+    public Mode lockMode(TransactionId tid, Object resource) {
+        Lock l = locks.get(resource);
+        return l == null ? null : l.get().mode(tid);
+    }
+
+    /** @return true if some transaction may modify the resource */
+    public boolean isWriteLocked(Object resource) {
+        Lock l = locks.get(resource);
+        return l != null && l.get().isWriteLocked();
+    }
+
+    /**
+     * @return true if a single transaction holds the lock on the resource,
+     *         in X mode
+     */
+    public boolean isExclusivelyLocked(Object resource) {
+        Lock l = locks.get(resource);
+        if (l == null)
+            return false;
+        Holders h = l.get();
+        return h.modes.length == 1 && h.modes[0] == Mode.X;
+    }
+
+    /**
+     * @return the transaction holding the lock on the resource in X mode, or
+     *         null if there is none
+     */
+    public TransactionId writer(Object resource) {
+        Lock l = locks.get(resource);
+        if (l == null)
+            return null;
+        Holders h = l.get();
+        for (int i = 0; i < h.modes.length; i++)
+            if (h.modes[i] == Mode.X)
+                return h.tids[i];
+        return null;
+    }
+
+    /** @return the resources the transaction holds locks on */
+    public Set<Object> locked(TransactionId tid) {
+        Set<Object> rs = locked.get(tid);
+        return rs == null ? Collections.<Object>emptySet() : rs;
+    }
+}
@@ -3,7 +3,13 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +38,14 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+Appending a record does not take the monitor, so that transactions can
+log in parallel.  Each append reserves the range of the log its record
+will occupy and copies the record into an in-memory log buffer, and a
+background writer thread writes the buffer to the file in large
+sequential writes.  Operations that read or rewrite the log file in
+place first stop appends and wait for the buffer to be written out.
 */
 
 /**
@@ -51,8 +65,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,11 +75,22 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA RECORDS describe a change to a HeapPage slot by slot, as
+written by HeapPageDelta.write().  A page is logged with an UPDATE
+record the first time it is written after a checkpoint, and with DELTA
+records after that, so that recovery always starts from a whole page.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  Checkpoints are fuzzy: pages are not
+flushed when they are taken, so the record goes on with the dirty page
+table, a long integer offset followed by an integer count of dirty
+pages, and a page id (written like the ids in page data) and the long
+integer offset of the first record that may have dirtied it for each
+dirty page.  Before the first offset, only the records of dirty pages
+from their own offsets on need redoing.
 
 </ul>
 
@@ -74,24 +99,74 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    private volatile RandomAccessFile raf;
+    volatile Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
-//    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    // the log buffer is a ring of segments; a record at offset o of the
+    // log goes at o modulo the size of the ring
+    static final int SEGMENT_SIZE = 64 * 1024;
+    static final int NUM_SEGMENTS = 16;
+    static final int BUFFER_SIZE = SEGMENT_SIZE * NUM_SEGMENTS;
+    private final ByteBuffer[] segments = new ByteBuffer[NUM_SEGMENTS];
+    // how long the writer waits for records before writing what it has,
+    // and how long it stays idle before it exits
+    static final long WRITER_INTERVAL_MILLIS = 10;
+    static final long WRITER_IDLE_MILLIS = 1000;
+    // checkpoints only truncate the log once this many bytes of it are
+    // no longer needed, since truncation copies the rest of the log
+    static final long TRUNCATE_THRESHOLD = 4 * 1024 * 1024;
+
+    // the end of the log: where the next record goes
+    final AtomicLong currentOffset = new AtomicLong(-1);
+    // the bytes truncated from the start of the log so far; offsets plus
+    // this are log sequence numbers, which truncation does not change
+    private volatile long truncated = 0; // changed with the gate's write lock
+    // the end of the records copied into the buffer; advanced in offset
+    // order, so everything before it is in the buffer
+    private final AtomicLong filled = new AtomicLong(-1);
+    private final Object drain = new Object();
+    private volatile long written = -1; // in the file up to here; protected by drain
+    private volatile int drainWaiters = 0; // protected by drain
+    private volatile boolean writerRunning = false; // protected by drain
+    private volatile IOException writeError; // protected by drain
+    // the log sequence number up to which the log is forced to disk
+    private volatile long durableLsn = 0; // protected by drain
+    // appends hold the read lock; reading or rewriting the file in place
+    // takes the write lock
+    private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
 
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+//    int pageSize;
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    // updated as BEGIN, COMMIT and ABORT records are appended, so that a
+    // checkpoint sees it agree with the log
+    Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
+
+    // the pages logged since the last checkpoint; later writes of these
+    // are logged as deltas
+    private final Set<PageId> loggedPages =
+        Collections.newSetFromMap(new ConcurrentHashMap<PageId,Boolean>());
+
+    // group commit: commits append their record and wait for the flusher
+    // thread, which forces the log once for every commit appended so far
+    private final AtomicLong commitsLogged = new AtomicLong();
+    private final Object groupCommit = new Object();
+    private long commitsRequested = 0; // protected by groupCommit
+    private long commitsForced = 0; // protected by groupCommit
+    private IOException flushError; // protected by groupCommit
+    private Thread flusher; // protected by groupCommit
+    private volatile long groupCommitDelay = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -108,6 +183,8 @@ public class LogFile {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        for (int i = 0; i < NUM_SEGMENTS; i++)
+            segments[i] = ByteBuffer.allocateDirect(SEGMENT_SIZE);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -124,19 +201,307 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            gate.writeLock().lock();
+            try {
+                if (recoveryUndecided) {
+                    recoveryUndecided = false;
+                    raf.seek(0);
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    resetBuffer(raf.getFilePointer());
+                }
+            } finally {
+                gate.writeLock().unlock();
+            }
+        }
+    }
+
+    public int getTotalRecords() {
+        return totalRecords.get();
+    }
+
+    /** A log record being built.  The offset that the record ends with
+        is added when it is appended. */
+    private static class Record extends DataOutputStream {
+        final int type;
+        final long tid;
+        long end; // the log sequence number just past it, once appended
+
+        Record(int type, long tid) throws IOException {
+            super(new ByteArrayOutputStream());
+            this.type = type;
+            this.tid = tid;
+            writeInt(type);
+            writeLong(tid);
+        }
+
+        byte[] finish(long start) throws IOException {
+            writeLong(start);
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    /** Append a record to the log.  Any number of threads may append at
+        once: each reserves the range of the log its record occupies, and
+        copies the record into the log buffer there.  Waits if the buffer
+        has no room for the record yet.  Callers must not hold the write
+        lock of the gate without having called preAppend() first.
+
+        @return The offset of the record
+    */
+    private long append(Record r) throws IOException {
+        preAppend();
+        int length = r.size() + LONG_SIZE;
+        if (length > BUFFER_SIZE)
+            throw new IOException("log record of " + length + " bytes does not fit in the log buffer");
+        totalRecords.incrementAndGet();
+        gate.readLock().lock();
+        try {
+            long start = currentOffset.getAndAdd(length);
+            r.end = start + length + truncated;
+            // under the gate, so a checkpoint taken with it held sees the
+            // table agree with the records before it
+            if (r.type == BEGIN_RECORD)
+                tidToFirstLogRecord.put(r.tid, start);
+            else if (r.type == COMMIT_RECORD || r.type == ABORT_RECORD)
+                tidToFirstLogRecord.remove(r.tid);
+            byte[] data = r.finish(start);
+            awaitWritten(start + length - BUFFER_SIZE);
+            for (int done = 0; done < length; ) {
+                long pos = start + done;
+                int off = (int) (pos % SEGMENT_SIZE);
+                int n = Math.min(length - done, SEGMENT_SIZE - off);
+                ByteBuffer seg = segments[(int) (pos / SEGMENT_SIZE % NUM_SEGMENTS)].duplicate();
+                seg.position(off);
+                seg.put(data, done, n);
+                done += n;
+            }
+            // publish in offset order, so that the writer never writes
+            // a record that is still being copied
+            while (!filled.compareAndSet(start, start + length)) {
+                if (writeError != null)
+                    throw new IOException("could not write the log", writeError);
+                Thread.yield();
+            }
+            if (drainWaiters > 0 || !writerRunning
+                    || start + length - written > BUFFER_SIZE / 2)
+                wakeWriter();
+            return start;
+        } finally {
+            gate.readLock().unlock();
+        }
+    }
+
+    /** Wait until the log is in the file up to the specified offset. */
+    private void awaitWritten(long offset) throws IOException {
+        if (written >= offset)
+            return;
+        boolean interrupted = false;
+        synchronized (drain) {
+            drainWaiters++;
+            try {
+                wakeWriter();
+                while (written < offset && writeError == null) {
+                    try {
+                        drain.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                drainWaiters--;
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (written < offset)
+                throw new IOException("could not write the log", writeError);
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /** Wake up the writer thread, starting it if it is not running. */
+    private void wakeWriter() {
+        synchronized (drain) {
+            if (!writerRunning) {
+                writerRunning = true;
+                Thread writer = new Thread("LogFile writer") {
+                    public void run() {
+                        writeBuffer();
+                    }
+                };
+                writer.setDaemon(true);
+                writer.start();
+            }
+            drain.notifyAll();
+        }
+    }
+
+    /** The writer thread: write the records in the log buffer to the
+        file, as many at a time as there are, until it has been idle for
+        a while. */
+    private void writeBuffer() {
+        long idleSince = System.currentTimeMillis();
+        try {
+            while (true) {
+                long start, end;
+                synchronized (drain) {
+                    start = written;
+                    end = filled.get();
+                    if (end == start) {
+                        if (System.currentTimeMillis() - idleSince > WRITER_IDLE_MILLIS) {
+                            writerRunning = false;
+                            return;
+                        }
+                        drain.wait(WRITER_INTERVAL_MILLIS);
+                        continue;
+                    }
+                }
+                // appends go on while the buffer is written
+                FileChannel ch = raf.getChannel();
+                for (long pos = start; pos < end; ) {
+                    int off = (int) (pos % SEGMENT_SIZE);
+                    int n = (int) Math.min(end - pos, SEGMENT_SIZE - off);
+                    ByteBuffer seg = segments[(int) (pos / SEGMENT_SIZE % NUM_SEGMENTS)].duplicate();
+                    seg.limit(off + n);
+                    seg.position(off);
+                    while (seg.hasRemaining())
+                        pos += ch.write(seg, pos);
+                }
+                synchronized (drain) {
+                    written = end;
+                    drain.notifyAll();
+                }
+                idleSince = System.currentTimeMillis();
+            }
+        } catch (IOException e) {
+            synchronized (drain) {
+                writeError = e;
+                writerRunning = false;
+                drain.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            synchronized (drain) {
+                writerRunning = false;
+            }
+        }
+    }
+
+    /** Stop appends and wait until the whole log is in the file, so that
+        it can be read or rewritten in place.  Appends resume when the
+        caller releases the write lock of the gate. */
+    private void quiesce() throws IOException {
+        gate.writeLock().lock();
+        try {
+            awaitWritten(currentOffset.get());
+        } catch (IOException e) {
+            gate.writeLock().unlock();
+            throw e;
+        }
+    }
+
+    /** Start appending at the specified offset of a log file that was
+        rewritten.  Must be called with the write lock of the gate held. */
+    private void resetBuffer(long end) {
+        synchronized (drain) {
+            currentOffset.set(end);
+            filled.set(end);
+            written = end;
+            durableLsn = Math.min(durableLsn, end + truncated);
+        }
+    }
+
+    /** @return The log sequence number of the end of the log.  Unlike
+        offsets, log sequence numbers stay the same when the log is
+        truncated. */
+    public long endLsn() {
+        gate.readLock().lock();
+        try {
+            return currentOffset.get() + truncated;
+        } finally {
+            gate.readLock().unlock();
+        }
+    }
+
+    /** The contents of a CHECKPOINT record; all positions are offsets. */
+    private static class Checkpoint {
+        // the first record of each transaction running at the checkpoint
+        final Map<Long,Long> active = new HashMap<Long,Long>();
+        // before dirtyFrom, only the records of the dirty pages need
+        // redoing, from the first record that may have dirtied each
+        long dirtyFrom;
+        final Map<PageId,Long> dirty = new HashMap<PageId,Long>();
+
+        /** @return Where redo has to start */
+        long redoStart() {
+            long start = dirtyFrom;
+            for (long recLsn : dirty.values())
+                start = Math.min(start, recLsn);
+            return start;
+        }
+
+        /** @return The first record recovery may need */
+        long firstNeeded() {
+            long first = redoStart();
+            for (long offset : active.values())
+                first = Math.min(first, offset);
+            return first;
+        }
+
+        /** Write the body of the record, moving every offset back by
+            shift. */
+        void write(DataOutput out, long shift) throws IOException {
+            out.writeInt(active.size());
+            for (Map.Entry<Long,Long> e : active.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue() - shift);
+            }
+            out.writeLong(dirtyFrom - shift);
+            out.writeInt(dirty.size());
+            for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue() - shift);
+            }
+        }
+
+        static Checkpoint read(DataInput in) throws IOException {
+            Checkpoint cp = new Checkpoint();
+            int numXactions = in.readInt();
+            while (numXactions-- > 0) {
+                long xid = in.readLong();
+                cp.active.put(xid, in.readLong());
+            }
+            cp.dirtyFrom = in.readLong();
+            int numDirty = in.readInt();
+            while (numDirty-- > 0) {
+                PageId pid = readPageId(in);
+                cp.dirty.put(pid, in.readLong());
+            }
+            return cp;
+        }
+    }
+
+    /** Write a page id, as writePageData() and CHECKPOINT records do. */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++)
+            out.writeInt(pageInfo[i]);
+    }
+
+    /** Read a page id written by writePageId(). */
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        Object idArgs[] = new Object[in.readInt()];
+        for (int i = 0; i < idArgs.length; i++)
+            idArgs[i] = Integer.valueOf(in.readInt());
+        try {
+            Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+            return (PageId) idConsts[0].newInstance(idArgs);
+        } catch (Exception e) {
+            throw new IOException("cannot read page id of class " + idClassName, e);
+        }
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -150,7 +515,6 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
 
             synchronized(this) {
-                preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
@@ -158,47 +522,124 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                append(new Record(ABORT_RECORD, tid.getId()));
                 force();
-                tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  Commits are forced in groups: the
+        record is appended, and the caller waits until a flusher thread
+        has forced it along with those of all the other transactions
+        that committed in the meantime, so that a single sync covers
+        many commits.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
+    public void logCommit(TransactionId tid) throws IOException {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        append(new Record(COMMIT_RECORD, tid.getId()));
+        awaitForce(commitsLogged.incrementAndGet());
+    }
+
+    /** Set how long the flusher thread waits, after the first commit of
+        a group arrives, for more commits to join the group before it
+        forces the log.  Longer delays make commits slower, but let more
+        of them share a sync when many transactions commit at once.  The
+        default of 0 only groups the commits that arrive while the
+        previous group is being forced.
+
+        @param millis The maximum delay, in milliseconds
+    */
+    public void setGroupCommitDelay(long millis) {
+        groupCommitDelay = millis;
+    }
+
+    /** Wait until the specified commit is on disk, starting the flusher
+        thread if it is not running yet. */
+    private void awaitForce(long ticket) throws IOException {
+        boolean interrupted = false;
+        synchronized (groupCommit) {
+            if (flusher == null) {
+                flusher = new Thread("LogFile flusher") {
+                    public void run() {
+                        flushCommits();
+                    }
+                };
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            if (ticket > commitsRequested) {
+                commitsRequested = ticket;
+                groupCommit.notifyAll();
+            }
+            // a commit must be durable before it returns, so keep waiting
+            // if interrupted
+            while (commitsForced < ticket && flushError == null) {
+                try {
+                    groupCommit.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (commitsForced < ticket)
+                throw new IOException("could not force the log", flushError);
+        }
+    }
+
+    /** The flusher thread: force the log whenever commits are waiting,
+        and wake up the ones the force covered. */
+    private void flushCommits() {
+        try {
+            while (true) {
+                synchronized (groupCommit) {
+                    while (commitsRequested <= commitsForced)
+                        groupCommit.wait();
+                }
+                long delay = groupCommitDelay;
+                if (delay > 0)
+                    Thread.sleep(delay);
+                long covered = commitsLogged.get();
+                try {
+                    force();
+                } catch (IOException e) {
+                    synchronized (groupCommit) {
+                        flushError = e;
+                        groupCommit.notifyAll();
+                    }
+                    return;
+                }
+                synchronized (groupCommit) {
+                    commitsForced = covered;
+                    groupCommit.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            // shut down
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  If the page is
+        a HeapPage that was logged since the last checkpoint, only the
+        slots that changed are logged, in a DELTA record.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return The log sequence number just past the record; the page
+        may be written once the log is forced up to it
 
         @see simpledb.Page#getBeforeImage
+        @see #force(long)
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
         /* update record conists of
 
            record type
@@ -207,20 +648,33 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        preAppend();
+        Record r;
+        long start;
+        // pages are written by transactions and the page cleaner alike, so
+        // hold the gate to keep a checkpoint from starting between here
+        // and the append
+        gate.readLock().lock();
+        try {
+            if (after instanceof HeapPage && !loggedPages.add(after.getId())) {
+                r = new Record(DELTA_RECORD, tid.getId());
+                HeapPageDelta.diff((HeapPage) before, (HeapPage) after).write(r);
+            } else {
+                r = new Record(UPDATE_RECORD, tid.getId());
+                writePageData(r,before);
+                writePageData(r,after);
+            }
+            start = append(r);
+        } finally {
+            gate.readLock().unlock();
+        }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        Debug.log("WRITE OFFSET = " + start);
+        return r.end;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
 
         //page data is:
         // page class name
@@ -231,15 +685,10 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        writePageId(raf, pid);
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
@@ -247,24 +696,14 @@ public class LogFile {
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
         Page newPage = null;
 
         String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
 
         try {
-            Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
             Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
             int pageSize = raf.readInt();
 
@@ -299,158 +738,159 @@ public class LogFile {
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = append(new Record(BEGIN_RECORD, tid.getId()));
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + start);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: instead of flushing the buffer pool, it
+        records the dirty pages, which the page cleaner writes out in
+        the background.  Appends only stop while the record is built. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        preAppend();
+        long firstNeeded;
+        synchronized (this) {
+            Checkpoint cp = new Checkpoint();
+            // pages dirtied from here on are dirtied after dirtyFrom
+            cp.dirtyFrom = currentOffset.get();
+            for (Map.Entry<PageId,Long> e : Database.getBufferPool().getDirtyPages().entrySet())
+                cp.dirty.put(e.getKey(), Math.max(LONG_SIZE, e.getValue() - truncated));
+            long startCpOffset;
+            // no records may be appended while the list of outstanding
+            // transactions is taken
+            gate.writeLock().lock();
+            try {
+                cp.active.putAll(tidToFirstLogRecord);
+                Record r = new Record(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+                cp.write(r, 0);
+                startCpOffset = append(r);
+                loggedPages.clear();
+            } finally {
+                gate.writeLock().unlock();
             }
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            ByteBuffer header = ByteBuffer.allocate(LONG_SIZE);
+            header.putLong(0, startCpOffset);
+            raf.getChannel().write(header, 0);
+            firstNeeded = cp.firstNeeded();
         }
 
-        logTruncate();
+        // zone maps only need to be saved as of a checkpoint: those of files
+        // written after it no longer match them, and are rebuilt
+        Iterator<Integer> ids = Database.getCatalog().tableIdIterator();
+        while (ids.hasNext()) {
+            DbFile f = Database.getCatalog().getDatabaseFile(ids.next());
+            if (f instanceof HeapFile)
+                ((HeapFile) f).getZoneMap().flush();
+        }
+
+        if (firstNeeded - LONG_SIZE > TRUNCATE_THRESHOLD)
+            logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Most of the log is copied while appends go on;
+        they only stop while the records appended meanwhile are copied. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
         raf.seek(0);
         long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
+        raf.seek(cpLoc);
+        int cpType = raf.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = raf.readLong();
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
+        long minLogRecord = Math.min(cpLoc, Checkpoint.read(raf).firstNeeded());
 
-        // we can truncate everything before minLogRecord
+        // we can truncate everything before minLogRecord; every offset
+        // after it moves back by the same amount
+        long shift = minLogRecord - LONG_SIZE;
+        if (shift <= 0)
+            return;
         File newFile = new File("logtmp" + System.currentTimeMillis());
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
         logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        logNew.writeLong(cpLoc - shift);
+        long copied = copyRecords(logNew, minLogRecord, written, shift);
 
-        raf.seek(minLogRecord);
+        quiesce();
+        try {
+            long end = currentOffset.get();
+            copyRecords(logNew, copied, end, shift);
+            logNew.getChannel().force(true);
+            logNew.close();
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+            Debug.log("TRUNCATING LOG;  WAS " + end + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (end - minLogRecord));
 
-                Debug.log("NEW START = " + newStart);
+            raf.close();
+            logFile.delete();
+            newFile.renameTo(logFile);
+            raf = new RandomAccessFile(logFile, "rw");
+            newFile.delete();
+
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet())
+                e.setValue(e.getValue() - shift);
+            truncated += shift;
+            resetBuffer(end - shift);
+        } finally {
+            gate.writeLock().unlock();
+        }
+        //print();
+    }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    /** Copy the records between two offsets of the log to another file,
+        moving every offset in them back by shift.
+        @return The offset just past the last record copied */
+    private long copyRecords(RandomAccessFile logNew, long from, long to,
+                             long shift) throws IOException {
+        raf.seek(from);
+        //have to rewrite log records since offsets are different after truncation
+        while (raf.getFilePointer() < to) {
+            int type = raf.readInt();
+            long record_tid = raf.readLong();
+            long newStart = logNew.getFilePointer();
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+            Debug.log("NEW START = " + newStart);
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+            logNew.writeInt(type);
+            logNew.writeLong(record_tid);
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+            switch (type) {
+            case UPDATE_RECORD:
+                Page before = readPageData(raf);
+                Page after = readPageData(raf);
 
-            } catch (EOFException e) {
+                writePageData(logNew, before);
+                writePageData(logNew, after);
+                break;
+            case DELTA_RECORD:
+                HeapPageDelta.read(raf).write(logNew);
+                break;
+            case CHECKPOINT_RECORD:
+                Checkpoint.read(raf).write(logNew, shift);
                 break;
             }
-        }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+            //all xactions finish with a pointer
+            logNew.writeLong(newStart);
+            raf.readLong();
+        }
+        return raf.getFilePointer();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -466,16 +906,91 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("no BEGIN record for transaction " + tid.getId());
+                List<HeapPageDelta> changes = new ArrayList<HeapPageDelta>();
+                quiesce();
+                try {
+                    undo(Collections.singleton(tid.getId()), first, currentOffset.get(), changes);
+                } finally {
+                    gate.writeLock().unlock();
+                }
+                // outside the gate, since the page cleaner latches pages
+                // before it logs them
+                for (HeapPageDelta d : changes) {
+                    if (!Database.getBufferPool().undoLogged(tid, d))
+                        install(d, false);
+                }
+            }
+        }
+    }
+
+    /** Undo the updates of the specified transactions, by walking the
+        log backwards from end to start and undoing each of their UPDATE
+        and DELTA records.  Each record ends with its own offset, which is
+        what makes the backward walk possible.  Only the slots a change to
+        a HeapPage touched are set back, so that the changes other
+        transactions made to the page under tuple locks are kept; other
+        pages get their before image back whole.
+
+        @param tids The transactions to undo
+        @param start The offset of the first record that may need undoing
+        @param end The offset just past the last record that may need undoing
+        @param changes If not null, the changes to HeapPages are added to
+        it, latest first, for the caller to undo, rather than undone on disk
+    */
+    private void undo(Set<Long> tids, long start, long end,
+                      List<HeapPageDelta> changes) throws IOException {
+        long offset = end;
+        while (offset > start) {
+            raf.seek(offset - LONG_SIZE);
+            long recordStart = raf.readLong();
+            raf.seek(recordStart);
+            int type = raf.readInt();
+            long tid = raf.readLong();
+            HeapPageDelta d = null;
+            if (type == UPDATE_RECORD && tids.contains(tid)) {
+                Page before = readPageData(raf);
+                Page after = readPageData(raf);
+                if (before instanceof HeapPage)
+                    d = HeapPageDelta.diff((HeapPage) before, (HeapPage) after);
+                else
+                    install(before);
+            } else if (type == DELTA_RECORD && tids.contains(tid)) {
+                d = HeapPageDelta.read(raf);
             }
+            if (d != null && changes != null)
+                changes.add(d);
+            else if (d != null)
+                install(d, false);
+            offset = recordStart;
         }
     }
 
+    /** Write a page image logged by an UPDATE record to its file, and
+        make sure the buffer pool does not keep a stale copy. */
+    private void install(Page p) throws IOException {
+        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+        Database.getBufferPool().discardPage(p.getId());
+    }
+
+    /** Apply a delta logged by a DELTA record to the page on disk.
+        @param redo true to redo the change, false to undo it */
+    private void install(HeapPageDelta d, boolean redo) throws IOException {
+        DbFile f = Database.getCatalog().getDatabaseFile(d.getId().getTableId());
+        install(d.apply((HeapPage) f.readPage(d.getId()), redo));
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
     public synchronized void shutdown() {
+        synchronized (groupCommit) {
+            if (flusher != null)
+                flusher.interrupt();
+        }
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
@@ -492,19 +1007,152 @@ public class LogFile {
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+                gate.writeLock().lock();
+                try {
+                    recoverLog();
+                } finally {
+                    gate.writeLock().unlock();
+                }
             }
          }
     }
 
+    private void recoverLog() throws IOException {
+        recoveryUndecided = false;
+        if (raf.length() < LONG_SIZE) {
+            // nothing was ever logged
+            raf.setLength(0);
+            raf.writeLong(NO_CHECKPOINT_ID);
+            resetBuffer(raf.getFilePointer());
+            return;
+        }
+
+        // analysis: the checkpoint tells which transactions were running
+        // and which pages were dirty when it was taken
+        HashMap<Long,Long> active = new HashMap<Long,Long>();
+        Checkpoint cp = null;
+        raf.seek(0);
+        long cpOffset = raf.readLong();
+        long start = LONG_SIZE;
+        if (cpOffset != NO_CHECKPOINT_ID) {
+            raf.seek(cpOffset);
+            if (raf.readInt() != CHECKPOINT_RECORD)
+                throw new IOException("Checkpoint pointer does not point to checkpoint record");
+            raf.readLong();
+            cp = Checkpoint.read(raf);
+            active.putAll(cp.active);
+            start = cp.redoStart();
+        }
+
+        // analysis and redo, in one pass over the log from where the
+        // first page dirty at the checkpoint may have been dirtied:
+        // repeat history by installing the after image of every
+        // update, and roll back aborted transactions at the point
+        // where they aborted.  Before the checkpoint, the checkpoint
+        // already accounts for the transactions, and only the updates
+        // of pages that were still dirty then need redoing.
+        long end = start;
+        raf.seek(start);
+        try {
+            while (true) {
+                long recordStart = raf.getFilePointer();
+                int type = raf.readInt();
+                long tid = raf.readLong();
+                Page after = null;
+                HeapPageDelta delta = null;
+                PageId pid = null;
+                switch (type) {
+                case UPDATE_RECORD:
+                    readPageData(raf);
+                    after = readPageData(raf);
+                    pid = after.getId();
+                    break;
+                case DELTA_RECORD:
+                    delta = HeapPageDelta.read(raf);
+                    pid = delta.getId();
+                    break;
+                case CHECKPOINT_RECORD:
+                    Checkpoint.read(raf);
+                    break;
+                }
+                raf.readLong();
+                // the record is complete; apply it
+                end = raf.getFilePointer();
+                if (recordStart < cpOffset) {
+                    Long recLsn = pid == null ? null : cp.dirty.get(pid);
+                    if (pid == null || (recordStart < cp.dirtyFrom
+                            && (recLsn == null || recordStart < recLsn)))
+                        continue;
+                }
+                switch (type) {
+                case BEGIN_RECORD:
+                    active.put(tid, recordStart);
+                    break;
+                case UPDATE_RECORD:
+                    install(after);
+                    break;
+                case DELTA_RECORD:
+                    install(delta, true);
+                    break;
+                case ABORT_RECORD:
+                    Long first = active.remove(tid);
+                    undo(Collections.singleton(tid),
+                         first != null ? first : start, recordStart, null);
+                    break;
+                case COMMIT_RECORD:
+                    active.remove(tid);
+                    break;
+                }
+                raf.seek(end);
+            }
+        } catch (EOFException e) {
+            // a crash may have left the last record incomplete
+        }
+        Debug.log("RECOVERY: REDID LOG FROM " + start + " TO " + end);
+
+        // undo: roll back the transactions that never finished,
+        // back to the first record of the oldest of them
+        raf.setLength(end);
+        if (!active.isEmpty())
+            undo(active.keySet(), Collections.min(active.values()), end, null);
+
+        // and log that they aborted, so that they are not undone again
+        resetBuffer(end);
+        for (Long tid : active.keySet())
+            append(new Record(ABORT_RECORD, tid));
+        force();
+        tidToFirstLogRecord.clear();
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Write the whole log to the file, and force the file to disk. */
+    public void force() throws IOException {
+        gate.readLock().lock();
+        try {
+            long end = currentOffset.get();
+            awaitWritten(end);
+            raf.getChannel().force(true);
+            synchronized (drain) {
+                durableLsn = Math.max(durableLsn, end + truncated);
+            }
+        } finally {
+            gate.readLock().unlock();
+        }
+    }
+
+    /** Make sure the log is on disk up to the specified log sequence
+        number, forcing it only if an earlier force, such as that of a
+        group of commits, has not covered it already.
+
+        @param lsn The log sequence number, as returned by logWrite
+    */
+    public void force(long lsn) throws IOException {
+        if (durableLsn < lsn)
+            force();
     }
 
 }
@@ -2,7 +2,7 @@ package simpledb;
 
 /** A LogicalJoinNode represens the state needed of a join of two
  * tables in a LogicalQueryPlan */
-public class LogicalJoinNode {
+public class LogicalJoinNode implements Cloneable {
 
     /** The first table to join (may be null). It's the alias of the table (if no alias, the true table name) */
     public String t1Alias;
@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The operator to perform the join with, as chosen by
+     * {@link JoinOptimizer#orderJoins}; null means nested loops. */
+    public JoinAlgorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +67,18 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this join to be performed with the given
+     * algorithm. */
+    public LogicalJoinNode withAlgorithm(JoinAlgorithm a) {
+        try {
+            LogicalJoinNode j2 = (LogicalJoinNode) clone();
+            j2.algorithm = a;
+            return j2;
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
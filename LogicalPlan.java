@@ -2,6 +2,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -36,6 +37,7 @@ public class LogicalPlan {
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    private boolean batchFilters = false;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -50,6 +52,17 @@ public class LogicalPlan {
         this.query = "";
     }
 
+    /** Evaluate the filters on each table a batch of rows at a time, with
+        {@link BatchFilter}s between the table's scan and the rest of the
+        plan, rather than with a {@link Filter} per predicate.  Off by
+        default.
+
+        @param batchFilters whether to use batch filters
+    */
+    public void setBatchFilters(boolean batchFilters) {
+        this.batchFilters = batchFilters;
+    }
+
     /** Set the text of the query representing this logical plan.  Does NOT parse the
         specified query -- this method is just used so that the object can print the
         SQL it represents.
@@ -258,6 +271,57 @@ public class LogicalPlan {
 
     }
 
+    /** Find the fields of a table that this plan refers to, so that tables
+     *  stored by column only need to decode those.
+     *  @param alias the alias of the table in the plan
+     *  @param td the TupleDesc of the table
+     *  @return the indexes in td of the referenced fields, in table order,
+     *    or null if the plan needs every field (e.g., SELECT *)
+     */
+    private int[] referencedFields(String alias, TupleDesc td) {
+        HashSet<String> names = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            addFieldRef(names, alias, si.fname);
+        }
+        addFieldRef(names, alias, groupByField);
+        addFieldRef(names, alias, aggField);
+        addFieldRef(names, alias, oByField);
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                names.add(lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (alias.equals(lj.t1Alias))
+                names.add(lj.f1PureName);
+            if (alias.equals(lj.t2Alias))
+                names.add(lj.f2PureName);
+        }
+
+        ArrayList<Integer> idx = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (names.contains(td.getFieldName(i)))
+                idx.add(i);
+        }
+        if (idx.isEmpty())
+            idx.add(0);
+        int[] result = new int[idx.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = idx.get(i);
+        return result;
+    }
+
+    /** Add the pure name of the qualified field name to names if it
+     *  belongs to the table with the given alias */
+    private static void addFieldRef(HashSet<String> names, String alias, String qualifiedName) {
+        if (qualifiedName == null)
+            return;
+        String[] parts = qualifiedName.split("[.]");
+        if (parts.length == 2 && parts[0].equals(alias))
+            names.add(parts[1]);
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -289,17 +353,25 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,SeqScan> scanMap = new HashMap<String,SeqScan>();
+        HashMap<String,Vector<Predicate>> scanPredicates = new HashMap<String,Vector<Predicate>>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                 int[] cols = file instanceof PaxFile ? referencedFields(table.alias, file.getTupleDesc()) : null;
+                 if (cols != null)
+                     ss = new ColumnScan(t, file.getId(), table.alias, cols);
+                 else
+                     ss = new SeqScan(t, file.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
             subplanMap.put(table.alias,ss);
+            scanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
@@ -325,6 +397,8 @@ public class LogicalPlan {
             }
             if (ftyp == Type.INT_TYPE)
                 f = new IntField(new Integer(lf.c).intValue());
+            else if (ftyp == Type.VARCHAR_TYPE)
+                f = new VarStringField(lf.c);
             else
                 f = new StringField(lf.c, Type.STRING_LEN);
 
@@ -334,15 +408,36 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
-
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
+            if (!batchFilters)
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (scanPredicates.get(lf.tableAlias) == null)
+                scanPredicates.put(lf.tableAlias, new Vector<Predicate>());
+            scanPredicates.get(lf.tableAlias).addElement(p);
+
+            int tableId = this.getTableId(lf.tableAlias);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // the stats cover every column of the table, while a ColumnScan
+            // only has the columns the query uses
+            double sel= s.estimateSelectivity(Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // push each table's filters into its scan, so that pages that cannot
+        // match are skipped and non-matching tuples are never decoded.  The
+        // Filter operators, or with batchFilters a chain of BatchFilters,
+        // stay in the plan and re-check the survivors.
+        for (java.util.Map.Entry<String,Vector<Predicate>> e : scanPredicates.entrySet()) {
+            scanMap.get(e.getKey()).setPredicates(e.getValue());
+            if (batchFilters) {
+                BatchIterator b = new TupleToBatchIterator(scanMap.get(e.getKey()));
+                for (Predicate p : e.getValue())
+                    b = new BatchFilter(p, b);
+                subplanMap.put(e.getKey(), new BatchToTupleIterator(b));
+            }
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
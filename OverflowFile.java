@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * OverflowFile stores values that are too long to be kept inside a record of
+ * a {@link SlottedHeapFile}. A value is written to a chain of overflow pages,
+ * each of which begins with the page number of the next page in the chain (or
+ * -1 for the last page) followed by up to
+ * <code>BufferPool.getPageSize() - 4</code> bytes of the value. Records refer
+ * to a value by the number of its first overflow page and its length.
+ * <p>
+ * Overflow values are never modified in place: they are appended, and forced
+ * to disk, before the record that refers to them is inserted. The log
+ * therefore never holds a record whose value could be lost in a crash, and
+ * overflow writes need no log records of their own; a crash or an abort can
+ * at worst leave unreferenced overflow pages behind. Space used by deleted
+ * values is not reclaimed.
+ */
+public class OverflowFile {
+    private final File file;
+
+    /**
+     * @param f the file holding the overflow pages; created on first write
+     */
+    public OverflowFile(File f) {
+        this.file = f;
+    }
+
+    /**
+     * Returns the File backing this OverflowFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of pages in this OverflowFile.
+     */
+    public int numPages() {
+        return (int) (file.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Append a value to the end of this file, and force it to disk.
+     *
+     * @param value the bytes to store
+     * @return the page number of the first overflow page of the value
+     */
+    public synchronized int write(byte[] value) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int payload = pageSize - 4;
+        int first = numPages();
+        int pages = Math.max(1, (value.length + payload - 1) / payload);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pages * pageSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = 0; i < pages; i++) {
+            dos.writeInt(i == pages - 1 ? -1 : first + i + 1);
+            int off = i * payload;
+            int len = Math.min(payload, value.length - off);
+            dos.write(value, off, len);
+            for (int j = len; j < payload; j++)
+                dos.writeByte(0);
+        }
+        dos.flush();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek((long) first * pageSize);
+            raf.write(baos.toByteArray());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        return first;
+    }
+
+    /**
+     * Read a value previously stored with {@link #write}.
+     *
+     * @param firstPage the page number returned by write
+     * @param length the length in bytes of the value
+     */
+    public byte[] read(int firstPage, int length) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        byte[] value = new byte[length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            int page = firstPage;
+            int off = 0;
+            while (off < length) {
+                if (page < 0)
+                    throw new IOException("overflow chain ends early");
+                raf.seek((long) page * pageSize);
+                int next = raf.readInt();
+                int len = Math.min(pageSize - 4, length - off);
+                raf.readFully(value, off, len);
+                off += len;
+                page = next;
+            }
+        } finally {
+            raf.close();
+        }
+        return value;
+    }
+}
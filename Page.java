@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.Iterator;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -56,4 +58,9 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * @return an iterator over the tuples stored on this page
+     */
+    public Iterator<Tuple> iterator();
 }
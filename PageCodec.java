@@ -0,0 +1,274 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * PageCodec compresses the bytes of a {@link HeapPage} for storage in a
+ * {@link CompressedHeapFile}. Compression happens in two steps:
+ * <ol>
+ * <li>The page is transposed into column-major order: the header, then the
+ * values of each field for every slot, then the unused bytes at the end of
+ * the page. INT_TYPE columns are run-length encoded as (run length, value)
+ * pairs; other columns are copied as is.</li>
+ * <li>The transposed page is compressed with a byte-oriented LZ77 scheme in
+ * the style of LZ4: a sequence of literal runs, each followed by a
+ * back-reference of at least four bytes into the last 64KB of output.</li>
+ * </ol>
+ * Pages whose compressed form would not be smaller are stored uncompressed.
+ */
+public class PageCodec {
+
+    static final byte STORED = 0;
+    static final byte COMPRESSED = 1;
+
+    static final int MIN_MATCH = 4;
+    static final int MAX_OFFSET = 0xffff;
+    static final int HASH_BITS = 12;
+
+    /**
+     * Compress the bytes of a HeapPage.
+     *
+     * @param page the page data, as returned by HeapPage.getPageData
+     * @param td the schema of the tuples on the page
+     * @return the compressed page
+     */
+    public static byte[] compress(byte[] page, TupleDesc td) {
+        byte[] packed = lzCompress(transpose(page, td));
+        if (packed.length + 1 >= page.length) {
+            byte[] out = new byte[page.length + 1];
+            out[0] = STORED;
+            System.arraycopy(page, 0, out, 1, page.length);
+            return out;
+        }
+        byte[] out = new byte[packed.length + 1];
+        out[0] = COMPRESSED;
+        System.arraycopy(packed, 0, out, 1, packed.length);
+        return out;
+    }
+
+    /**
+     * Decompress a page produced by {@link #compress}.
+     *
+     * @param data the compressed page
+     * @param td the schema of the tuples on the page
+     * @return the page data, BufferPool.getPageSize() bytes long
+     */
+    public static byte[] decompress(byte[] data, TupleDesc td)
+            throws IOException {
+        if (data.length == 0)
+            throw new IOException("empty compressed page");
+        if (data[0] == STORED) {
+            byte[] page = new byte[data.length - 1];
+            System.arraycopy(data, 1, page, 0, page.length);
+            return page;
+        }
+        if (data[0] != COMPRESSED)
+            throw new IOException("unknown page encoding " + data[0]);
+        return untranspose(lzDecompress(data, 1), td);
+    }
+
+    // ---- column transposition ----
+
+    private static int numSlots(TupleDesc td) {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+    }
+
+    /** Rearrange a page into column-major order, RLE-encoding int columns. */
+    static byte[] transpose(byte[] page, TupleDesc td) {
+        int numSlots = numSlots(td);
+        int headerSize = (numSlots + 7) / 8;
+        int tupleSize = td.getSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(page.length);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.write(page, 0, headerSize);
+            int fieldOff = 0;
+            for (int j = 0; j < td.numFields(); j++) {
+                int len = td.getFieldType(j).getLen();
+                int base = headerSize + fieldOff;
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    int i = 0;
+                    while (i < numSlots) {
+                        int v = PredicateCompiler.readInt(page, base + i * tupleSize);
+                        int run = 1;
+                        while (i + run < numSlots
+                                && PredicateCompiler.readInt(page, base + (i + run) * tupleSize) == v)
+                            run++;
+                        dos.writeInt(run);
+                        dos.writeInt(v);
+                        i += run;
+                    }
+                } else {
+                    for (int i = 0; i < numSlots; i++)
+                        dos.write(page, base + i * tupleSize, len);
+                }
+                fieldOff += len;
+            }
+            int end = headerSize + numSlots * tupleSize;
+            dos.write(page, end, page.length - end);
+            dos.flush();
+        } catch (IOException e) {
+            // writes to a ByteArrayOutputStream do not fail
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /** Inverse of {@link #transpose}. */
+    static byte[] untranspose(byte[] cols, TupleDesc td) throws IOException {
+        int numSlots = numSlots(td);
+        int headerSize = (numSlots + 7) / 8;
+        int tupleSize = td.getSize();
+        byte[] page = new byte[BufferPool.getPageSize()];
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(cols));
+        dis.readFully(page, 0, headerSize);
+        int fieldOff = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            int base = headerSize + fieldOff;
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                int i = 0;
+                while (i < numSlots) {
+                    int run = dis.readInt();
+                    int v = dis.readInt();
+                    if (run <= 0 || i + run > numSlots)
+                        throw new IOException("corrupt run length " + run);
+                    for (int k = 0; k < run; k++, i++) {
+                        int off = base + i * tupleSize;
+                        page[off] = (byte) (v >>> 24);
+                        page[off + 1] = (byte) (v >>> 16);
+                        page[off + 2] = (byte) (v >>> 8);
+                        page[off + 3] = (byte) v;
+                    }
+                }
+            } else {
+                for (int i = 0; i < numSlots; i++)
+                    dis.readFully(page, base + i * tupleSize, len);
+            }
+            fieldOff += len;
+        }
+        int end = headerSize + numSlots * tupleSize;
+        dis.readFully(page, end, page.length - end);
+        return page;
+    }
+
+    // ---- LZ compression ----
+
+    private static int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static void writeLength(ByteArrayOutputStream out, int len) {
+        while (len >= 255) {
+            out.write(255);
+            len -= 255;
+        }
+        out.write(len);
+    }
+
+    /**
+     * Compress in. The output is the length of in, followed by sequences of
+     * a token byte (literal length in the high nibble, match length - 4 in
+     * the low nibble, 15 meaning more length bytes follow), the literals,
+     * and a two byte little-endian match offset. The last sequence has only
+     * literals.
+     */
+    static byte[] lzCompress(byte[] in) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(in.length / 2 + 16);
+        int n = in.length;
+        out.write(n >>> 24);
+        out.write(n >>> 16);
+        out.write(n >>> 8);
+        out.write(n);
+
+        int[] table = new int[1 << HASH_BITS];
+        java.util.Arrays.fill(table, -1);
+        int anchor = 0;
+        int i = 0;
+        while (i + MIN_MATCH <= n) {
+            int v = PredicateCompiler.readInt(in, i);
+            int h = hash(v);
+            int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref > MAX_OFFSET
+                    || PredicateCompiler.readInt(in, ref) != v) {
+                i++;
+                continue;
+            }
+            int len = MIN_MATCH;
+            while (i + len < n && in[ref + len] == in[i + len])
+                len++;
+
+            int lit = i - anchor;
+            int ml = len - MIN_MATCH;
+            out.write((Math.min(lit, 15) << 4) | Math.min(ml, 15));
+            if (lit >= 15)
+                writeLength(out, lit - 15);
+            out.write(in, anchor, lit);
+            int offset = i - ref;
+            out.write(offset);
+            out.write(offset >>> 8);
+            if (ml >= 15)
+                writeLength(out, ml - 15);
+
+            i += len;
+            anchor = i;
+        }
+
+        int lit = n - anchor;
+        out.write(Math.min(lit, 15) << 4);
+        if (lit >= 15)
+            writeLength(out, lit - 15);
+        out.write(in, anchor, lit);
+        return out.toByteArray();
+    }
+
+    /** Inverse of {@link #lzCompress}, reading in from offset start. */
+    static byte[] lzDecompress(byte[] in, int start) throws IOException {
+        int ip = start;
+        int n = PredicateCompiler.readInt(in, ip);
+        ip += 4;
+        byte[] out = new byte[n];
+        int op = 0;
+        try {
+            while (ip < in.length) {
+                int token = in[ip++] & 0xff;
+                int lit = token >>> 4;
+                if (lit == 15) {
+                    int b;
+                    do {
+                        b = in[ip++] & 0xff;
+                        lit += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(in, ip, out, op, lit);
+                ip += lit;
+                op += lit;
+                if (ip >= in.length)
+                    break;
+
+                int offset = (in[ip] & 0xff) | ((in[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int len = token & 0x0f;
+                if (len == 15) {
+                    int b;
+                    do {
+                        b = in[ip++] & 0xff;
+                        len += b;
+                    } while (b == 255);
+                }
+                len += MIN_MATCH;
+                if (offset == 0 || offset > op)
+                    throw new IOException("corrupt match offset " + offset);
+                // byte at a time, since a match may overlap its own output
+                for (int k = 0; k < len; k++, op++)
+                    out[op] = out[op - offset];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt compressed page");
+        }
+        if (op != n)
+            throw new IOException("compressed page is truncated");
+        return out;
+    }
+}
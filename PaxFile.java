@@ -0,0 +1,254 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PaxFile is an implementation of a DbFile that stores tuples on
+ * {@link PaxPage}s, which group the values of each column together. Like a
+ * {@link HeapFile}, the file is simply a sequence of fixed-size pages in no
+ * particular order, and pages are identified by {@link HeapPageId}s.
+ * <p>
+ * PaxFiles are chosen per table in the catalog schema by following the
+ * column list with the <code>pax</code> annotation, e.g.
+ * <code>t (a int, b string) pax</code>.
+ *
+ * @see PaxPage
+ * @see ColumnScan
+ */
+public class PaxFile implements DbFile {
+    private final File file;
+    private final int id;
+    private final TupleDesc tupleDesc;
+
+    /**
+     * Constructs a PAX file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the schema of the tuples in this file
+     * @throws IllegalArgumentException
+     *             if td has variable-length fields
+     */
+    public PaxFile(File f, TupleDesc td) {
+        if (!td.isFixedSize())
+            throw new IllegalArgumentException(
+                    "PaxFile cannot store variable-length fields");
+        this.file = f;
+        this.id = f.getAbsoluteFile().hashCode();
+        this.tupleDesc = td;
+    }
+
+    /**
+     * Returns the File backing this PaxFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    // see DbFile.java for javadocs
+    public int getId() {
+        return id;
+    }
+
+    // see DbFile.java for javadocs
+    public TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        if (pid.pageNumber() >= numPages())
+            throw new IllegalArgumentException("page " + pid.pageNumber()
+                    + " does not exist in this file");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            byte[] pageBytes = new byte[BufferPool.getPageSize()];
+            try {
+                raf.seek((long) pid.pageNumber() * BufferPool.getPageSize());
+                raf.readFully(pageBytes);
+            } finally {
+                raf.close();
+            }
+            return new PaxPage((HeapPageId) pid, pageBytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+            raf.write(page.getPageData());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the number of pages in this PaxFile.
+     */
+    public int numPages() {
+        return (int) (file.length() / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> result = new ArrayList<Page>();
+        int numPages = numPages();
+        for (int i = 0; i < numPages; i++) {
+            PaxPage p = insertablePage(tid, new HeapPageId(getId(), i));
+            if (p != null) {
+                insertInto(tid, p, t);
+                result.add(p);
+                return result;
+            }
+        }
+
+        // no room on any existing page: append an empty page and insert
+        // into it through the buffer pool. Only the first of several
+        // concurrent inserters appends the page
+        HeapPageId pid = new HeapPageId(getId(), numPages);
+        synchronized (this) {
+            if (numPages() == numPages)
+                writePage(new PaxPage(pid, PaxPage.createEmptyPageData()));
+        }
+        PaxPage p = insertablePage(tid, pid);
+        if (p == null) // the others filled it up first
+            return insertTuple(tid, t);
+        insertInto(tid, p, t);
+        result.add(p);
+        return result;
+    }
+
+    /**
+     * Inserts t into a page the transaction holds a write lock on. The
+     * page is latched while it changes, since the page cleaner may be
+     * writing it out.
+     */
+    private void insertInto(TransactionId tid, PaxPage p, Tuple t)
+            throws DbException {
+        synchronized (p) {
+            p.insertTuple(t);
+            // marked under the latch, so that the buffer pool never takes
+            // the changed page for a clean one
+            p.markDirty(true, tid);
+        }
+    }
+
+    /**
+     * Returns the page with a write lock if it has room for the tuple.
+     * Otherwise the lock is given back, unless the transaction held one on
+     * the page already, so that inserters do not keep the full pages they
+     * pass over locked.
+     */
+    private PaxPage insertablePage(TransactionId tid, PageId pid)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        boolean held = bp.holdsLock(tid, pid);
+        PaxPage p = (PaxPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        if (p.getNumEmptySlots() > 0)
+            return p;
+        if (!held)
+            bp.releasePage(tid, pid);
+        return null;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        if (t.getRecordId() == null
+                || t.getRecordId().getPageId().getTableId() != getId())
+            throw new DbException("tuple is not a member of this file");
+        PaxPage p = (PaxPage) Database.getBufferPool().getPage(tid,
+                t.getRecordId().getPageId(), Permissions.READ_WRITE);
+        synchronized (p) {
+            p.deleteTuple(t);
+            p.markDirty(true, tid);
+        }
+        ArrayList<Page> result = new ArrayList<Page>();
+        result.add(p);
+        return result;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] all = new int[tupleDesc.numFields()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = i;
+        return iterator(tid, all, tupleDesc);
+    }
+
+    /**
+     * Returns an iterator over the tuples in this file that decodes only the
+     * specified columns.
+     *
+     * @param fields the indexes of the columns to decode
+     * @param outTd the schema of the returned tuples, one field per entry of
+     *        fields
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] fields,
+            TupleDesc outTd) {
+        return iterator(tid, fields, outTd, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples in this file that decodes only the
+     * specified columns and returns only the tuples that satisfy a
+     * predicate.
+     *
+     * @param fields the indexes of the columns to decode
+     * @param outTd the schema of the returned tuples, one field per entry of
+     *        fields
+     * @param filter a predicate over outTd, or null to return every tuple
+     */
+    public DbFileIterator iterator(final TransactionId tid, final int[] fields,
+            final TupleDesc outTd, final PredicateEvaluator filter) {
+        return new AbstractDbFileIterator() {
+            Iterator<Tuple> it = null;
+            int curpgno = -1;
+            boolean open = false;
+
+            public void open() {
+                open = true;
+                curpgno = -1;
+                it = null;
+            }
+
+            protected Tuple readNext() throws DbException,
+                    TransactionAbortedException {
+                if (!open)
+                    return null;
+                while (true) {
+                    while (it == null || !it.hasNext()) {
+                        if (curpgno + 1 >= numPages())
+                            return null;
+                        curpgno++;
+                        PaxPage p = (PaxPage) Database.getBufferPool().getPage(
+                                tid, new HeapPageId(getId(), curpgno),
+                                Permissions.READ_ONLY);
+                        it = p.iterator(fields, outTd);
+                    }
+                    Tuple t = it.next();
+                    if (filter == null || filter.eval(t))
+                        return t;
+                }
+            }
+
+            public void rewind() {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                open = false;
+                it = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,279 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * PaxPage stores one page of a {@link PaxFile} using the PAX
+ * (Partition Attributes Across) layout: the tuples on a page are the same
+ * as for a {@link HeapPage}, but the values of each column are stored
+ * together in a "minipage", so that a scan that only needs some of the
+ * columns only decodes those columns.
+ * <p>
+ * The format of a PaxPage is a header bitmap indicating which slots are in
+ * use, followed by one minipage per column. Minipage i holds the values of
+ * field i for every slot, each occupying
+ * <code>td.getFieldType(i).getLen()</code> bytes. The number of slots is the
+ * same as for a HeapPage with the same TupleDesc.
+ *
+ * @see PaxFile
+ * @see ColumnScan
+ */
+public class PaxPage implements Page {
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final int numSlots;
+    final int headerSize;
+    final int[] colOffsets;
+    final byte[] data;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    TransactionId transId;
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk.
+     *
+     * @see PaxPage
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        this.colOffsets = new int[td.numFields()];
+        int off = headerSize;
+        for (int i = 0; i < colOffsets.length; i++) {
+            colOffsets[i] = off;
+            off += numSlots * td.getFieldType(i).getLen();
+        }
+        this.data = new byte[BufferPool.getPageSize()];
+        System.arraycopy(data, 0, this.data, 0, Math.min(data.length, this.data.length));
+
+        setBeforeImage();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public PaxPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+            }
+            return new PaxPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     *
+     * @see #PaxPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * PaxPage.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /**
+     * Decode the value of one field of one slot from its minipage.
+     *
+     * @param field the column to read
+     * @param slot the slot to read
+     */
+    Field getField(int field, int slot) {
+        Type t = td.getFieldType(field);
+        int off = colOffsets[field] + slot * t.getLen();
+        if (t == Type.INT_TYPE)
+            return new IntField(PredicateCompiler.readInt(data, off));
+        try {
+            return t.parse(new DataInputStream(new ByteArrayInputStream(data,
+                    off, t.getLen())));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * Decode the specified fields of the tuple in a slot.
+     *
+     * @param slot the slot to read; must be in use
+     * @param fields the indexes of the columns to decode
+     * @param outTd the schema of the returned tuple, one field per entry
+     *        of fields
+     */
+    Tuple getTuple(int slot, int[] fields, TupleDesc outTd) {
+        Tuple t = new Tuple(outTd);
+        for (int i = 0; i < fields.length; i++)
+            t.setField(i, getField(fields[i], slot));
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
+    /**
+     * Delete the specified tuple from the page;  the tuple should be updated to reflect
+     *   that it is no longer stored on any page.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        if (!isSlotUsed(rid.tupleno()))
+            throw new DbException("tuple slot is already empty");
+        markSlotUsed(rid.tupleno(), false);
+        t.setRecordId(null);
+    }
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to reflect
+     *  that it is now stored on this page.
+     * @throws DbException if the page is full (no empty slots) or tupledesc
+     *         is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tuple does not match this table");
+        int slot = -1;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot == -1)
+            throw new DbException("no empty slots on this page");
+
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+            try {
+                t.getField(j).serialize(new DataOutputStream(baos));
+            } catch (IOException e) {
+                throw new DbException("could not serialize field " + j);
+            }
+            System.arraycopy(baos.toByteArray(), 0, data,
+                    colOffsets[j] + slot * len, len);
+        }
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.transId = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return transId;
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int cnt = 0;
+        for (int i = 0; i < numSlots; i++)
+            if (!isSlotUsed(i)) cnt++;
+        return cnt;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return (data[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value)
+            data[i / 8] |= (byte) (1 << (i % 8));
+        else
+            data[i / 8] &= (byte) ~(1 << (i % 8));
+    }
+
+    /**
+     * @return an iterator over all tuples on this page, with every column
+     *         decoded
+     */
+    public Iterator<Tuple> iterator() {
+        int[] all = new int[td.numFields()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = i;
+        return iterator(all, td);
+    }
+
+    /**
+     * @return an iterator over all tuples on this page that decodes only the
+     *         specified columns
+     * @param fields the indexes of the columns to decode
+     * @param outTd the schema of the returned tuples
+     */
+    public Iterator<Tuple> iterator(final int[] fields, final TupleDesc outTd) {
+        return new Iterator<Tuple>() {
+            int cur = nextUsed(0);
+
+            private int nextUsed(int i) {
+                while (i < numSlots && !isSlotUsed(i))
+                    i++;
+                return i;
+            }
+
+            public boolean hasNext() {
+                return cur < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = getTuple(cur, fields, outTd);
+                cur = nextUsed(cur + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
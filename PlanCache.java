@@ -1,50 +1,153 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Set;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.
+ * <p>
+ * A set of joins is a bitmask over the joins being ordered, with bit i set
+ * if the i-th join is in the set. Plans are kept in an open-addressing hash
+ * table keyed on these masks. Each plan only records the join it performs
+ * last and how the other joins split between the subplans on its two sides,
+ * whose plans are cached too; {@link #getOrder} follows these links to
+ * rebuild the whole ordering. */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
+    // key 0 (the empty set) marks an empty slot
+    private long[] keys = new long[64];
+    private double[] costs = new double[64];
+    private int[] cards = new int[64];
+    private int[] lastIndexes = new int[64];
+    private long[] lefts = new long[64];
+    private LogicalJoinNode[] lastJoins = new LogicalJoinNode[64];
+    private int size;
+
+    /** @return the slot of s, or of the empty slot where it would go */
+    private int slot(long s) {
+        long h = s * 0x9e3779b97f4a7c15L;
+        int mask = keys.length - 1;
+        int i = (int) (h ^ (h >>> 32)) & mask;
+        while (keys[i] != 0 && keys[i] != s)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        double[] oldCosts = costs;
+        int[] oldCards = cards;
+        int[] oldIndexes = lastIndexes;
+        long[] oldLefts = lefts;
+        LogicalJoinNode[] oldJoins = lastJoins;
+        int n = oldKeys.length * 2;
+        keys = new long[n];
+        costs = new double[n];
+        cards = new int[n];
+        lastIndexes = new int[n];
+        lefts = new long[n];
+        lastJoins = new LogicalJoinNode[n];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                costs[j] = oldCosts[i];
+                cards[j] = oldCards[i];
+                lastIndexes[j] = oldIndexes[i];
+                lefts[j] = oldLefts[i];
+                lastJoins[j] = oldJoins[i];
+            }
+        }
+    }
+
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
         specified join set
         @param s the set of joins for which a new ordering (plan) is being added
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param last the index of the join that the plan performs last
+        @param left the joins performed by the subplan on one side of that
+               join; the subplan on the other side performs the rest of s.
+               Either may be empty (a base table)
+        @param j that join, with inner and outer and the algorithm as the
+               plan performs it
     */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
+    void addPlan(long s, double cost, int card, int last, long left,
+            LogicalJoinNode j) {
+        if ((size + 1) * 4 > keys.length * 3)
+            grow();
+        int i = slot(s);
+        if (keys[i] == 0) {
+            keys[i] = s;
+            size++;
+        }
+        costs[i] = cost;
+        cards[i] = card;
+        lastIndexes[i] = last;
+        lefts[i] = left;
+        lastJoins[i] = j;
+    }
+
+    /** @return true if there is a plan for s in the cache */
+    boolean contains(long s) {
+        return keys[slot(s)] == s;
+    }
+
+    /** @return the number of join sets with a plan in the cache */
+    int size() {
+        return size;
     }
-    
-    /** Find the best join order in the cache for the specified plan 
+
+    /** Find the best join order in the cache for the specified plan
         @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+        @return the best order for s in the cache, or null if there is none.
+                Each join comes after the joins of the subplans it joins,
+                which may be bushy
+    */
+    Vector<LogicalJoinNode> getOrder(long s) {
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        return appendOrder(s, order, null) ? order : null;
+    }
+
+    /** Find the subplans of the best join order for the specified plan
+        @param s the set of joins to look up
+        @return for each join of {@link #getOrder}, in the same order, the set
+                of joins of the subplan that it is the last join of
     */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    long[] getSubplans(long s) {
+        long[] sets = new long[Long.bitCount(s)];
+        appendOrder(s, new Vector<LogicalJoinNode>(), sets);
+        return sets;
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
+
+    private boolean appendOrder(long s, Vector<LogicalJoinNode> order,
+            long[] sets) {
+        if (s == 0)
+            return true;
+        int i = slot(s);
+        if (keys[i] != s)
+            return false;
+        long rest = s & ~(1L << lastIndexes[i]);
+        if (!appendOrder(lefts[i], order, sets)
+                || !appendOrder(rest & ~lefts[i], order, sets))
+            return false;
+        if (sets != null)
+            sets[order.size()] = s;
+        order.add(lastJoins[i]);
+        return true;
+    }
+
+    /** Find the cost of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cost for
         @return the cost of the best order for s in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    double getCost(long s) {
+        return costs[slot(s)];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
+
+    /** Find the cardinality of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cardinality for
         @return the cardinality of the best order for s in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    int getCard(long s) {
+        return cards[slot(s)];
     }
 }
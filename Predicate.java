@@ -10,6 +10,7 @@ public class Predicate implements Serializable {
 	public int _field;
 	public Op _op;
 	public Field _operand;
+	private transient PredicateEvaluator _evaluator;
 
     private static final long serialVersionUID = 1L;
 
@@ -91,7 +92,8 @@ public class Predicate implements Serializable {
     /**
      * Compares the field number of t specified in the constructor to the
      * operand field specified in the constructor using the operator specific in
-     * the constructor. The comparison can be made through Field's compare
+     * the constructor. The predicate is compiled by {@link PredicateCompiler}
+     * on first use, so later calls avoid the dispatch in Field's compare
      * method.
      * 
      * @param t
@@ -99,8 +101,9 @@ public class Predicate implements Serializable {
      * @return true if the comparison is true, false otherwise.
      */
     public boolean filter(Tuple t) {
-        Field tField = t.getField(_field);
-        return tField.compare(_op, _operand);
+        if (_evaluator == null)
+            _evaluator = PredicateCompiler.compile(this);
+        return _evaluator.eval(t);
     }
 
     /**
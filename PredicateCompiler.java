@@ -0,0 +1,343 @@
+package simpledb;
+
+import java.util.List;
+
+/**
+ * PredicateCompiler turns {@link Predicate}s into {@link PredicateEvaluator}s
+ * that are specialized for the type of the field and the comparison operator.
+ * The operator switch, the operand cast and the operand encoding all happen
+ * once here, at plan time, rather than once per tuple as in
+ * {@link Field#compare}.
+ */
+public class PredicateCompiler {
+
+    /**
+     * Compile a predicate for evaluation on decoded tuples only.
+     *
+     * @param p
+     *            the predicate to compile
+     */
+    public static PredicateEvaluator compile(Predicate p) {
+        return compile(p, null);
+    }
+
+    /**
+     * Compile a predicate for evaluation on decoded tuples and on tuples
+     * serialized according to td.
+     *
+     * @param p
+     *            the predicate to compile
+     * @param td
+     *            the schema of the serialized tuples, or null if the
+     *            evaluator will only be used on decoded tuples
+     */
+    public static PredicateEvaluator compile(Predicate p, TupleDesc td) {
+        int field = p.getField();
+        int offset = td == null ? -1 : fieldOffset(td, field);
+        Field operand = p.getOperand();
+
+        if (operand.getType() == Type.INT_TYPE) {
+            int v = ((IntField) operand).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                return new IntEquals(field, offset, v);
+            case NOT_EQUALS:
+                return new IntNotEquals(field, offset, v);
+            case GREATER_THAN:
+                return new IntGreaterThan(field, offset, v);
+            case GREATER_THAN_OR_EQ:
+                return new IntGreaterThan(field, offset, v - 1L);
+            case LESS_THAN:
+                return new IntLessThan(field, offset, v);
+            case LESS_THAN_OR_EQ:
+                return new IntLessThan(field, offset, v + 1L);
+            }
+        } else {
+            String v = operand.toString();
+            switch (p.getOp()) {
+            case EQUALS:
+                return new StringEquals(field, offset, v, false);
+            case NOT_EQUALS:
+                return new StringEquals(field, offset, v, true);
+            case LIKE:
+                return new StringContains(field, offset, v);
+            default:
+                return new StringCompare(field, offset, v, p.getOp());
+            }
+        }
+        throw new IllegalArgumentException("cannot compile predicate " + p);
+    }
+
+    /**
+     * Compile the conjunction of several predicates over the same tuples,
+     * such as the {@link LogicalFilterNode}s that apply to one table.
+     *
+     * @param ps
+     *            the predicates to AND together; may be empty
+     * @param td
+     *            the schema of serialized tuples, or null
+     */
+    public static PredicateEvaluator compileConjunction(List<Predicate> ps,
+            TupleDesc td) {
+        if (ps.size() == 1)
+            return compile(ps.get(0), td);
+        PredicateEvaluator[] terms = new PredicateEvaluator[ps.size()];
+        for (int i = 0; i < terms.length; i++)
+            terms[i] = compile(ps.get(i), td);
+        return new And(terms);
+    }
+
+    /**
+     * @return the byte offset of the ith field within a serialized tuple of
+     *         schema td
+     */
+    static int fieldOffset(TupleDesc td, int i) {
+        int off = 0;
+        for (int j = 0; j < i; j++)
+            off += td.getFieldType(j).getLen();
+        return off;
+    }
+
+    /** Read a big-endian int, as written by DataOutputStream.writeInt. */
+    static int readInt(byte[] data, int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+                | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    /**
+     * Encode a string the way {@link StringField#serialize} does, keeping the
+     * low byte of each character.
+     */
+    static byte[] encode(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) s.charAt(i);
+        return b;
+    }
+
+    /**
+     * Compare a serialized string against an encoded operand with the same
+     * ordering as String.compareTo on the decoded values.
+     */
+    static int compareBytes(byte[] data, int off, int len, byte[] v) {
+        int n = Math.min(len, v.length);
+        for (int i = 0; i < n; i++) {
+            int c = (data[off + i] & 0xff) - (v[i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return len - v.length;
+    }
+
+    /** Base class for evaluators over a single field. */
+    static abstract class FieldEvaluator extends PredicateEvaluator {
+        private static final long serialVersionUID = 1L;
+        final int field;
+        final int offset;
+
+        FieldEvaluator(int field, int offset) {
+            this.field = field;
+            this.offset = offset;
+        }
+
+        int checkedOffset() {
+            if (offset < 0)
+                throw new UnsupportedOperationException(
+                        "predicate was compiled without a TupleDesc");
+            return offset;
+        }
+    }
+
+    static final class IntEquals extends FieldEvaluator {
+        private static final long serialVersionUID = 1L;
+        private final int v;
+
+        IntEquals(int field, int offset, int v) {
+            super(field, offset);
+            this.v = v;
+        }
+
+        public boolean eval(Tuple t) {
+            return ((IntField) t.getField(field)).getValue() == v;
+        }
+
+        public boolean eval(byte[] data, int tupleOffset) {
+            return readInt(data, tupleOffset + checkedOffset()) == v;
+        }
+    }
+
+    static final class IntNotEquals extends FieldEvaluator {
+        private static final long serialVersionUID = 1L;
+        private final int v;
+
+        IntNotEquals(int field, int offset, int v) {
+            super(field, offset);
+            this.v = v;
+        }
+
+        public boolean eval(Tuple t) {
+            return ((IntField) t.getField(field)).getValue() != v;
+        }
+
+        public boolean eval(byte[] data, int tupleOffset) {
+            return readInt(data, tupleOffset + checkedOffset()) != v;
+        }
+    }
+
+    /**
+     * x > v. The bound is a long so that x >= Integer.MIN_VALUE can be
+     * expressed as x > Integer.MIN_VALUE - 1.
+     */
+    static final class IntGreaterThan extends FieldEvaluator {
+        private static final long serialVersionUID = 1L;
+        private final long v;
+
+        IntGreaterThan(int field, int offset, long v) {
+            super(field, offset);
+            this.v = v;
+        }
+
+        public boolean eval(Tuple t) {
+            return ((IntField) t.getField(field)).getValue() > v;
+        }
+
+        public boolean eval(byte[] data, int tupleOffset) {
+            return readInt(data, tupleOffset + checkedOffset()) > v;
+        }
+    }
+
+    /** x < v, with a long bound for the same reason as IntGreaterThan. */
+    static final class IntLessThan extends FieldEvaluator {
+        private static final long serialVersionUID = 1L;
+        private final long v;
+
+        IntLessThan(int field, int offset, long v) {
+            super(field, offset);
+            this.v = v;
+        }
+
+        public boolean eval(Tuple t) {
+            return ((IntField) t.getField(field)).getValue() < v;
+        }
+
+        public boolean eval(byte[] data, int tupleOffset) {
+            return readInt(data, tupleOffset + checkedOffset()) < v;
+        }
+    }
+
+    static final class StringEquals extends FieldEvaluator {
+        private static final long serialVersionUID = 1L;
+        private final String v;
+        private final byte[] bytes;
+        private final boolean negate;
+
+        StringEquals(int field, int offset, String v, boolean negate) {
+            super(field, offset);
+            this.v = v;
+            this.bytes = encode(v);
+            this.negate = negate;
+        }
+
+        public boolean eval(Tuple t) {
+            return t.getField(field).toString().equals(v) != negate;
+        }
+
+        public boolean eval(byte[] data, int tupleOffset) {
+            int off = tupleOffset + checkedOffset();
+            int len = readInt(data, off);
+            if (len != bytes.length)
+                return negate;
+            return (compareBytes(data, off + 4, len, bytes) == 0) != negate;
+        }
+    }
+
+    static final class StringCompare extends FieldEvaluator {
+        private static final long serialVersionUID = 1L;
+        private final String v;
+        private final byte[] bytes;
+        private final Predicate.Op op;
+
+        StringCompare(int field, int offset, String v, Predicate.Op op) {
+            super(field, offset);
+            this.v = v;
+            this.bytes = encode(v);
+            this.op = op;
+        }
+
+        private boolean test(int c) {
+            switch (op) {
+            case GREATER_THAN:
+                return c > 0;
+            case GREATER_THAN_OR_EQ:
+                return c >= 0;
+            case LESS_THAN:
+                return c < 0;
+            default:
+                return c <= 0;
+            }
+        }
+
+        public boolean eval(Tuple t) {
+            return test(t.getField(field).toString().compareTo(v));
+        }
+
+        public boolean eval(byte[] data, int tupleOffset) {
+            int off = tupleOffset + checkedOffset();
+            return test(compareBytes(data, off + 4, readInt(data, off), bytes));
+        }
+    }
+
+    /** LIKE on strings, which SimpleDB defines as substring containment. */
+    static final class StringContains extends FieldEvaluator {
+        private static final long serialVersionUID = 1L;
+        private final String v;
+        private final byte[] bytes;
+
+        StringContains(int field, int offset, String v) {
+            super(field, offset);
+            this.v = v;
+            this.bytes = encode(v);
+        }
+
+        public boolean eval(Tuple t) {
+            return t.getField(field).toString().indexOf(v) >= 0;
+        }
+
+        public boolean eval(byte[] data, int tupleOffset) {
+            int off = tupleOffset + checkedOffset();
+            int len = readInt(data, off);
+            off += 4;
+            outer: for (int i = 0; i + bytes.length <= len; i++) {
+                for (int j = 0; j < bytes.length; j++)
+                    if (data[off + i + j] != bytes[j])
+                        continue outer;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    static final class And extends PredicateEvaluator {
+        private static final long serialVersionUID = 1L;
+        private final PredicateEvaluator[] terms;
+
+        And(PredicateEvaluator[] terms) {
+            this.terms = terms;
+        }
+
+        public boolean eval(Tuple t) {
+            for (PredicateEvaluator e : terms)
+                if (!e.eval(t))
+                    return false;
+            return true;
+        }
+
+        public boolean eval(byte[] data, int tupleOffset) {
+            for (PredicateEvaluator e : terms)
+                if (!e.eval(data, tupleOffset))
+                    return false;
+            return true;
+        }
+    }
+}
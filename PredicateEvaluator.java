@@ -0,0 +1,39 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A PredicateEvaluator is a predicate that has been specialized for the type
+ * of its field and its operator by {@link PredicateCompiler}, so that
+ * evaluating it does not go through {@link Field#compare}.
+ * <p>
+ * Evaluators can test either a decoded {@link Tuple} or a tuple that is still
+ * in its serialized form inside a page, which lets access methods skip
+ * decoding tuples that do not qualify.
+ */
+public abstract class PredicateEvaluator implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param t
+     *            The tuple to evaluate the predicate on
+     * @return true if t satisfies this predicate
+     */
+    public abstract boolean eval(Tuple t);
+
+    /**
+     * Evaluate this predicate on a tuple serialized in the format written by
+     * {@link Field#serialize}.
+     *
+     * @param data
+     *            the bytes holding the tuple, e.g. the data of a HeapPage
+     * @param tupleOffset
+     *            the offset in data of the first byte of the tuple
+     * @return true if the tuple satisfies this predicate
+     * @throws UnsupportedOperationException
+     *             if this evaluator was compiled without a TupleDesc and so
+     *             does not know where its field lives
+     */
+    public abstract boolean eval(byte[] data, int tupleOffset);
+}
@@ -10,10 +10,15 @@ import simpledb.TupleDesc.TDItem;
  * disk).
  */
 public class SeqScan implements DbIterator {
-	private HeapFile file;
+	private DbFile file;
 	private DbFileIterator iterator;
 	private int tableNo;
 	private String tableAlias;
+	private TransactionId tid;
+	private PredicateEvaluator filter;
+	private int runtimeField = -1;
+	private BloomFilter runtimeFilter;
+	private Tuple pending;
 
     private static final long serialVersionUID = 1L;
 
@@ -34,8 +39,9 @@ public class SeqScan implements DbIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String a) {
-        file = (HeapFile)Database.getCatalog().getDatabaseFile(tableid);
+        file = Database.getCatalog().getDatabaseFile(tableid);
         iterator = file.iterator(tid);    
+        this.tid = tid;
         tableNo = tableid;
         tableAlias = a;
     }
@@ -78,8 +84,77 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Push a compiled predicate down into this scan, so that tuples which do
+     * not satisfy it are rejected on the page bytes before being decoded.
+     * Must be called before the scan is opened. Only tables stored in a
+     * {@link HeapFile} evaluate the pushed predicate; for other files it is
+     * ignored, and the Filter operators above the scan still apply it.
+     *
+     * @param filter
+     *            a predicate compiled against the table's TupleDesc (see
+     *            {@link PredicateCompiler#compile(Predicate, TupleDesc)})
+     */
+    public void setFilter(PredicateEvaluator filter) {
+        if (file instanceof HeapFile) {
+            this.filter = filter;
+            this.iterator = ((HeapFile) file).iterator(tid, filter);
+        }
+    }
+
+    /**
+     * Push a conjunction of predicates down into this scan. In addition to
+     * what {@link #setFilter} does, this lets the scan skip whole pages whose
+     * zone map (see {@link ZoneMap}) shows that none of their tuples can
+     * satisfy the predicates. Must be called before the scan is opened; as
+     * for setFilter, it is ignored unless the table is stored in a HeapFile.
+     *
+     * @param preds
+     *            predicates over the table's TupleDesc, ANDed together
+     */
+    public void setPredicates(List<Predicate> preds) {
+        if (file instanceof HeapFile) {
+            this.filter = PredicateCompiler.compileConjunction(preds,
+                    file.getTupleDesc());
+            this.iterator = ((HeapFile) file).iterator(tid, preds);
+        }
+    }
+
+    /**
+     * Install a filter on the values of one field, computed while the query
+     * runs, e.g. the join keys seen by a {@link HashEquiJoin} above this
+     * scan. Tuples whose value is not in the filter are dropped by the scan.
+     * May be called at any time, including while the scan is open; it
+     * replaces any filter installed earlier.
+     *
+     * @param field
+     *            the index of the field in this scan's TupleDesc
+     * @param bf
+     *            the filter, or null to remove it
+     */
+    public void setRuntimeFilter(int field, BloomFilter bf) {
+        this.runtimeField = field;
+        this.runtimeFilter = bf;
+    }
+
+    /**
+     * Use it to produce the tuples of this scan; for subclasses that read the
+     * table in a different way.
+     */
+    void setIterator(DbFileIterator it) {
+        this.iterator = it;
+    }
+
+    /**
+     * @return the predicate pushed into this scan, or null
+     */
+    public PredicateEvaluator getFilter() {
+        return this.filter;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
     	//iterator = Database.getCatalog().getDatabaseFile(tableId).iterator(transId);
+    	pending = null;
     	iterator.open();
     }
 
@@ -121,20 +196,35 @@ public class SeqScan implements DbIterator {
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
-        return (iterator.hasNext());
+        if (runtimeFilter == null)
+            return pending != null || iterator.hasNext();
+        while (pending == null && iterator.hasNext()) {
+            Tuple t = iterator.next();
+            if (runtimeFilter.mightContain(t.getField(runtimeField)))
+                pending = t;
+        }
+        return pending != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        return (iterator.next());
+        if (!hasNext())
+            throw new NoSuchElementException();
+        if (pending == null)
+            return iterator.next();
+        Tuple t = pending;
+        pending = null;
+        return t;
     }
 
     public void close() {
+        pending = null;
         iterator.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        pending = null;
         iterator.rewind();
     }
 }
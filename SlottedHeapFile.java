@@ -0,0 +1,229 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlottedHeapFile is an implementation of a DbFile that stores tuples on
+ * {@link SlottedHeapPage}s, so that records can vary in size. It is the
+ * storage format for tables with {@link Type#VARCHAR_TYPE} columns. Values
+ * that are too long to be stored inside a record are kept in an
+ * {@link OverflowFile} next to the data file, named by appending
+ * <code>.ovf</code> to the data file's name.
+ * <p>
+ * Catalog schemas select SlottedHeapFiles automatically for tables with
+ * <code>varchar</code> or <code>text</code> columns, or explicitly with the
+ * <code>slotted</code> annotation.
+ *
+ * @see SlottedHeapPage
+ */
+public class SlottedHeapFile implements DbFile {
+    private final File file;
+    private final int id;
+    private final TupleDesc tupleDesc;
+    private final OverflowFile overflow;
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the schema of the tuples in this file
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        this.file = f;
+        this.id = f.getAbsoluteFile().hashCode();
+        this.tupleDesc = td;
+        this.overflow = new OverflowFile(new File(f.getPath() + ".ovf"));
+    }
+
+    /**
+     * Returns the File backing this SlottedHeapFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the file that holds values too long to store in a record.
+     */
+    public OverflowFile getOverflowFile() {
+        return overflow;
+    }
+
+    // see DbFile.java for javadocs
+    public int getId() {
+        return id;
+    }
+
+    // see DbFile.java for javadocs
+    public TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        if (pid.pageNumber() >= numPages())
+            throw new IllegalArgumentException("page " + pid.pageNumber()
+                    + " does not exist in this file");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            byte[] pageBytes = new byte[BufferPool.getPageSize()];
+            try {
+                raf.seek((long) pid.pageNumber() * BufferPool.getPageSize());
+                raf.readFully(pageBytes);
+            } finally {
+                raf.close();
+            }
+            return new SlottedHeapPage((HeapPageId) pid, pageBytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+            raf.write(page.getPageData());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the number of pages in this SlottedHeapFile.
+     */
+    public int numPages() {
+        return (int) (file.length() / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        int size = SlottedHeapPage.recordSize(t);
+        if (size + SlottedHeapPage.HEADER_SIZE + SlottedHeapPage.SLOT_SIZE
+                > BufferPool.getPageSize())
+            throw new DbException("tuple is too large to fit on a page");
+
+        ArrayList<Page> result = new ArrayList<Page>();
+        int numPages = numPages();
+        for (int i = 0; i < numPages; i++) {
+            SlottedHeapPage p = insertablePage(tid, new HeapPageId(getId(), i), size);
+            if (p != null) {
+                insertInto(tid, p, t);
+                result.add(p);
+                return result;
+            }
+        }
+
+        // no room on any existing page: append an empty page and insert
+        // into it through the buffer pool. Only the first of several
+        // concurrent inserters appends the page
+        HeapPageId pid = new HeapPageId(getId(), numPages);
+        synchronized (this) {
+            if (numPages() == numPages)
+                writePage(new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData()));
+        }
+        SlottedHeapPage p = insertablePage(tid, pid, size);
+        if (p == null) // the others filled it up first
+            return insertTuple(tid, t);
+        insertInto(tid, p, t);
+        result.add(p);
+        return result;
+    }
+
+    /**
+     * Inserts t into a page the transaction holds a write lock on. The
+     * page is latched while it changes, since the page cleaner may be
+     * writing it out.
+     */
+    private void insertInto(TransactionId tid, SlottedHeapPage p, Tuple t)
+            throws DbException {
+        synchronized (p) {
+            p.insertTuple(t);
+            // marked under the latch, so that the buffer pool never takes
+            // the changed page for a clean one
+            p.markDirty(true, tid);
+        }
+    }
+
+    /**
+     * Returns the page with a write lock if it has room for the tuple.
+     * Otherwise the lock is given back, unless the transaction held one on
+     * the page already, so that inserters do not keep the full pages they
+     * pass over locked.
+     */
+    private SlottedHeapPage insertablePage(TransactionId tid, PageId pid, int size)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        boolean held = bp.holdsLock(tid, pid);
+        SlottedHeapPage p = (SlottedHeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        if (p.hasRoomFor(size))
+            return p;
+        if (!held)
+            bp.releasePage(tid, pid);
+        return null;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        if (t.getRecordId() == null
+                || t.getRecordId().getPageId().getTableId() != getId())
+            throw new DbException("tuple is not a member of this file");
+        SlottedHeapPage p = (SlottedHeapPage) Database.getBufferPool().getPage(
+                tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
+        synchronized (p) {
+            p.deleteTuple(t);
+            p.markDirty(true, tid);
+        }
+        ArrayList<Page> result = new ArrayList<Page>();
+        result.add(p);
+        return result;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(final TransactionId tid) {
+        return new AbstractDbFileIterator() {
+            Iterator<Tuple> it = null;
+            int curpgno = -1;
+            boolean open = false;
+
+            public void open() {
+                open = true;
+                curpgno = -1;
+                it = null;
+            }
+
+            protected Tuple readNext() throws DbException,
+                    TransactionAbortedException {
+                if (!open)
+                    return null;
+                while (it == null || !it.hasNext()) {
+                    if (curpgno + 1 >= numPages())
+                        return null;
+                    curpgno++;
+                    SlottedHeapPage p = (SlottedHeapPage) Database.getBufferPool()
+                            .getPage(tid, new HeapPageId(getId(), curpgno),
+                                    Permissions.READ_ONLY);
+                    it = p.iterator();
+                }
+                return it.next();
+            }
+
+            public void rewind() {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                open = false;
+                it = null;
+            }
+        };
+    }
+}
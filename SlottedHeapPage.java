@@ -0,0 +1,424 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * SlottedHeapPage stores one page of a {@link SlottedHeapFile}. Unlike a
+ * {@link HeapPage}, records are not fixed size, so tuples with
+ * {@link Type#VARCHAR_TYPE} fields only use as many bytes as their values
+ * need.
+ * <p>
+ * The format of a SlottedHeapPage is a header of two ints, the number of
+ * entries in the slot array and the offset of the start of the record heap,
+ * followed by the slot array. Each slot entry is two shorts, the offset and
+ * the length of its record; a length of 0 marks an empty slot. Records are
+ * allocated from the end of the page towards the slot array, and the space of
+ * deleted records is reclaimed by compacting the page when an insert would
+ * not otherwise fit.
+ * <p>
+ * Within a record, fields are serialized one after another. Fixed-length
+ * fields are written as by {@link Field#serialize}. A VARCHAR value of at
+ * most {@link #INLINE_LIMIT} bytes is written as its length followed by its
+ * UTF-8 bytes; a longer value is written as -1, its length, and the first
+ * page of the value in the table's {@link OverflowFile}.
+ *
+ * @see SlottedHeapFile
+ */
+public class SlottedHeapPage implements Page {
+
+    /** Longest VARCHAR value, in bytes, that is stored inside a record. */
+    public static final int INLINE_LIMIT = 512;
+
+    static final int HEADER_SIZE = 8;
+    static final int SLOT_SIZE = 4;
+    static final int OVERFLOW = -1;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final OverflowFile overflow;
+    final byte[] data;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    TransactionId transId;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     *
+     * @see SlottedHeapPage
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        DbFile f = Database.getCatalog().getDatabaseFile(id.getTableId());
+        this.td = f.getTupleDesc();
+        this.overflow = ((SlottedHeapFile) f).getOverflowFile();
+        this.data = new byte[BufferPool.getPageSize()];
+        System.arraycopy(data, 0, this.data, 0, Math.min(data.length, this.data.length));
+
+        setBeforeImage();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedHeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+            }
+            return new SlottedHeapPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     *
+     * @see #SlottedHeapPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * SlottedHeapPage.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    // ---- page layout ----
+
+    private int readShort(int off) {
+        return ((data[off] & 0xff) << 8) | (data[off + 1] & 0xff);
+    }
+
+    private void writeShort(int off, int v) {
+        data[off] = (byte) (v >>> 8);
+        data[off + 1] = (byte) v;
+    }
+
+    private void writeInt(int off, int v) {
+        data[off] = (byte) (v >>> 24);
+        data[off + 1] = (byte) (v >>> 16);
+        data[off + 2] = (byte) (v >>> 8);
+        data[off + 3] = (byte) v;
+    }
+
+    /** @return the number of entries in the slot array */
+    public int getNumSlots() {
+        return PredicateCompiler.readInt(data, 0);
+    }
+
+    private void setNumSlots(int n) {
+        writeInt(0, n);
+    }
+
+    /** @return the offset of the first byte of the record heap */
+    private int heapStart() {
+        int start = PredicateCompiler.readInt(data, 4);
+        // an all-zero page is empty, with the heap starting at the end
+        return start == 0 ? data.length : start;
+    }
+
+    private void setHeapStart(int off) {
+        writeInt(4, off);
+    }
+
+    private int slotOffset(int slot) {
+        return readShort(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private int slotLength(int slot) {
+        return readShort(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        writeShort(HEADER_SIZE + slot * SLOT_SIZE, offset);
+        writeShort(HEADER_SIZE + slot * SLOT_SIZE + 2, length);
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i < getNumSlots() && slotLength(i) != 0;
+    }
+
+    /**
+     * Returns the number of bytes that are available for new records and
+     * slot entries, counting the space of deleted records.
+     */
+    public int getFreeSpace() {
+        int n = getNumSlots();
+        int used = HEADER_SIZE + n * SLOT_SIZE;
+        for (int i = 0; i < n; i++)
+            used += slotLength(i);
+        return data.length - used;
+    }
+
+    /** @return the first empty slot, or getNumSlots() if there is none */
+    private int findEmptySlot() {
+        int n = getNumSlots();
+        for (int i = 0; i < n; i++)
+            if (slotLength(i) == 0)
+                return i;
+        return n;
+    }
+
+    /**
+     * Returns true if a record of the specified length (see
+     * {@link #recordSize}) can be inserted into this page.
+     */
+    public boolean hasRoomFor(int recordSize) {
+        int need = recordSize;
+        if (findEmptySlot() == getNumSlots())
+            need += SLOT_SIZE;
+        return getFreeSpace() >= need;
+    }
+
+    /**
+     * Move all records to the end of the page so that the free space between
+     * the slot array and the record heap is contiguous.
+     */
+    private void compact() {
+        int n = getNumSlots();
+        byte[] copy = data.clone();
+        int end = data.length;
+        for (int i = 0; i < n; i++) {
+            int len = slotLength(i);
+            if (len == 0)
+                continue;
+            end -= len;
+            System.arraycopy(copy, slotOffset(i), data, end, len);
+            setSlot(i, end, len);
+        }
+        setHeapStart(end);
+    }
+
+    // ---- records ----
+
+    /**
+     * Returns the number of bytes the record for t occupies on a page; values
+     * moved to overflow pages only count their reference.
+     */
+    public static int recordSize(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            Type type = td.getFieldType(i);
+            if (type == Type.VARCHAR_TYPE) {
+                int len = varcharBytes(t.getField(i)).length;
+                size += len <= INLINE_LIMIT ? 4 + len : 12;
+            } else
+                size += type.getLen();
+        }
+        return size;
+    }
+
+    private static byte[] varcharBytes(Field f) {
+        if (f instanceof VarStringField)
+            return ((VarStringField) f).getBytes();
+        return new VarStringField(f.toString()).getBytes();
+    }
+
+    /**
+     * Serialize t as described in {@link SlottedHeapPage}, writing long
+     * values to the overflow file.
+     */
+    private byte[] encodeRecord(Tuple t) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(recordSize(t));
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.VARCHAR_TYPE) {
+                byte[] b = varcharBytes(t.getField(i));
+                if (b.length <= INLINE_LIMIT) {
+                    dos.writeInt(b.length);
+                    dos.write(b);
+                } else {
+                    dos.writeInt(OVERFLOW);
+                    dos.writeInt(b.length);
+                    dos.writeInt(overflow.write(b));
+                }
+            } else
+                t.getField(i).serialize(dos);
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Decode the tuple in a slot.
+     *
+     * @param slot the slot to read; must be in use
+     */
+    Tuple getTuple(int slot) {
+        Tuple t = new Tuple(td);
+        int off = slotOffset(slot);
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Type type = td.getFieldType(i);
+                if (type == Type.INT_TYPE) {
+                    t.setField(i, new IntField(PredicateCompiler.readInt(data, off)));
+                    off += 4;
+                } else if (type == Type.VARCHAR_TYPE) {
+                    int len = PredicateCompiler.readInt(data, off);
+                    byte[] b;
+                    if (len == OVERFLOW) {
+                        b = overflow.read(PredicateCompiler.readInt(data, off + 8),
+                                PredicateCompiler.readInt(data, off + 4));
+                        off += 12;
+                    } else {
+                        b = new byte[len];
+                        System.arraycopy(data, off + 4, b, 0, len);
+                        off += 4 + len;
+                    }
+                    t.setField(i, new VarStringField(new String(b, "UTF-8")));
+                } else {
+                    t.setField(i, type.parse(new DataInputStream(
+                            new ByteArrayInputStream(data, off, type.getLen()))));
+                    off += type.getLen();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("error reading overflow value");
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
+    /**
+     * Delete the specified tuple from the page;  the tuple should be updated to reflect
+     *   that it is no longer stored on any page.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        int slot = rid.tupleno();
+        if (!isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+        setSlot(slot, 0, 0);
+
+        // drop empty entries from the end of the slot array
+        int n = getNumSlots();
+        while (n > 0 && slotLength(n - 1) == 0)
+            n--;
+        setNumSlots(n);
+        if (n == 0)
+            setHeapStart(data.length);
+        t.setRecordId(null);
+    }
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to reflect
+     *  that it is now stored on this page.
+     * @throws DbException if the page does not have room for the tuple or
+     *         tupledesc is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tuple does not match this table");
+        int size = recordSize(t);
+        if (!hasRoomFor(size))
+            throw new DbException("not enough free space on this page");
+
+        int slot = findEmptySlot();
+        int n = getNumSlots();
+        int slotEnd = HEADER_SIZE + (slot == n ? n + 1 : n) * SLOT_SIZE;
+        if (heapStart() - size < slotEnd)
+            compact();
+
+        byte[] record;
+        try {
+            record = encodeRecord(t);
+        } catch (IOException e) {
+            throw new DbException("could not write overflow value: " + e.getMessage());
+        }
+        int off = heapStart() - record.length;
+        System.arraycopy(record, 0, data, off, record.length);
+        setHeapStart(off);
+        if (slot == n)
+            setNumSlots(n + 1);
+        setSlot(slot, off, record.length);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.transId = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return transId;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            final int n = getNumSlots();
+            int cur = nextUsed(0);
+
+            private int nextUsed(int i) {
+                while (i < n && slotLength(i) == 0)
+                    i++;
+                return i;
+            }
+
+            public boolean hasNext() {
+                return cur < n;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = getTuple(cur);
+                cur = nextUsed(cur + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
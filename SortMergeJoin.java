@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator implements an equality join by sorting both
+ * children on their join fields and merging them. Like {@link OrderBy}, it
+ * reads its children into memory when it is opened, so rewinding it does not
+ * read them again.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+    private ArrayList<Tuple> tups1 = new ArrayList<Tuple>();
+    private ArrayList<Tuple> tups2 = new ArrayList<Tuple>();
+
+    // the runs of equal keys being joined are tups1[lo1, hi1) and
+    // tups2[lo2, hi2); the next output pairs tups1[a] with tups2[b]
+    private int lo1, hi1, lo2, hi2, a, b;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException
+     *             if the predicate is not an equality
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException(
+                    "SortMergeJoin only supports equality joins");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /** Read all the tuples of a child, sorted on field. */
+    private static void load(DbIterator child, int field, ArrayList<Tuple> tups)
+            throws DbException, TransactionAbortedException {
+        tups.clear();
+        while (child.hasNext())
+            tups.add(child.next());
+        Collections.sort(tups, new TupleComparator(field, true));
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        load(child1, pred.getField1(), tups1);
+        load(child2, pred.getField2(), tups2);
+        rewind();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        tups1.clear();
+        tups2.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        lo1 = hi1 = lo2 = hi2 = a = b = 0;
+    }
+
+    /**
+     * Advance to the next runs of tuples with equal keys on both sides.
+     *
+     * @return false if there are none
+     */
+    private boolean nextRuns() {
+        int i1 = hi1, i2 = hi2;
+        while (i1 < tups1.size() && i2 < tups2.size()) {
+            Field f1 = tups1.get(i1).getField(pred.getField1());
+            Field f2 = tups2.get(i2).getField(pred.getField2());
+            if (f1.compare(Predicate.Op.LESS_THAN, f2)) {
+                i1++;
+            } else if (f1.compare(Predicate.Op.GREATER_THAN, f2)) {
+                i2++;
+            } else {
+                lo1 = i1;
+                while (i1 < tups1.size() && tups1.get(i1)
+                        .getField(pred.getField1()).compare(Predicate.Op.EQUALS, f1))
+                    i1++;
+                lo2 = i2;
+                while (i2 < tups2.size() && tups2.get(i2)
+                        .getField(pred.getField2()).compare(Predicate.Op.EQUALS, f2))
+                    i2++;
+                hi1 = i1;
+                hi2 = i2;
+                a = lo1;
+                b = lo2;
+                return true;
+            }
+        }
+        hi1 = a = tups1.size();
+        hi2 = tups2.size();
+        return false;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a tuple from child1 and a tuple from
+     * child2 with equal join fields. Within a run of equal keys, every tuple
+     * of child1 is paired with every tuple of child2.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (a >= hi1 && !nextRuns())
+            return null;
+        Tuple t1 = tups1.get(a);
+        Tuple t2 = tups2.get(b);
+        if (++b == hi2) {
+            b = lo2;
+            a++;
+        }
+
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
@@ -42,6 +42,8 @@ public class StringField implements Field {
 	}
 
 	public boolean equals(Object field) {
+		if (field instanceof VarStringField)
+			return field.equals(this);
 		return ((StringField) field).value.equals(value);
 	}
 
@@ -70,14 +72,15 @@ public class StringField implements Field {
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
 	 * 
-	 * @throws IllegalCastException
-	 *             if val is not a StringField
+	 * @param val
+	 *            any string-valued field, e.g. a StringField or a
+	 *            VarStringField
 	 * @see Field#compare
 	 */
 	public boolean compare(Predicate.Op op, Field val) {
 
-		StringField iVal = (StringField) val;
-		int cmpVal = value.compareTo(iVal.value);
+		String other = val.toString();
+		int cmpVal = value.compareTo(other);
 
 		switch (op) {
 		case EQUALS:
@@ -99,7 +102,7 @@ public class StringField implements Field {
 			return cmpVal <= 0;
 
 		case LIKE:
-			return value.indexOf(iVal.value) >= 0;
+			return value.indexOf(other) >= 0;
 		}
 
 		return false;
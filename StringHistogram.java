@@ -1,23 +1,44 @@
 package simpledb;
 
+import java.io.Serializable;
+import java.util.Random;
+
 /**
- * A class to represent a fixed-width histogram over a single String-based
- * field.
+ * A class to represent a histogram over a single String-based field.
+ * <p>
+ * Range predicates are estimated with an {@link IntHistogram} over an
+ * order-preserving mapping of each string to an integer. Since that mapping
+ * only looks at the first four characters, a uniform sample of the strings
+ * themselves is kept as well, and used for EQUALS (the frequency of the exact
+ * string in the sample) and LIKE, which in SimpleDB matches substrings (the
+ * fraction of sampled strings containing the pattern).
  */
-public class StringHistogram {
+public class StringHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of strings kept for EQUALS and LIKE estimates. */
+    static final int STRING_SAMPLE_SIZE = 2000;
+
     final IntHistogram hist;
 
+    private final String[] sample;
+    private int sampled;
+    private long total;
+    private final Random rand = new Random(0);
+
     /**
      * Create a new StringHistogram with a specified number of buckets.
      * <p>
      * Our implementation is written in terms of an IntHistogram by converting
      * each String to an integer.
-     * 
+     *
      * @param buckets
      *            the number of buckets
      */
     public StringHistogram(int buckets) {
         hist = new IntHistogram(buckets, minVal(), maxVal());
+        sample = new String[STRING_SAMPLE_SIZE];
     }
 
     /**
@@ -63,25 +84,60 @@ public class StringHistogram {
     public void addValue(String s) {
         int val = stringToInt(s);
         hist.addValue(val);
+        if (sampled < sample.length) {
+            sample[sampled++] = s;
+        } else {
+            long r = (long) (rand.nextDouble() * (total + 1));
+            if (r < sample.length)
+                sample[(int) r] = s;
+        }
+        total++;
+    }
+
+    /**
+     * @return the fraction of sampled strings that equal s (if contains is
+     *         false) or contain s
+     */
+    private double sampleFraction(String s, boolean contains) {
+        int cnt = 0;
+        for (int i = 0; i < sampled; i++)
+            if (contains ? sample[i].indexOf(s) >= 0 : sample[i].equals(s))
+                cnt++;
+        if (cnt == 0) {
+            // not seen in the sample: rarer than one in the sample size,
+            // but possibly present in the table
+            return 0.5 / Math.max(1, sampled);
+        }
+        return (double) cnt / sampled;
     }
 
     /**
      * Estimate the selectivity (as a double between 0 and 1) of the specified
      * predicate over the specified string
-     * 
+     *
      * @param op
      *            The operation being applied
      * @param s
      *            The string to apply op to
      */
     public double estimateSelectivity(Predicate.Op op, String s) {
-        int val = stringToInt(s);
-        return hist.estimateSelectivity(op, val);
+        if (sampled == 0)
+            return 0.0;
+        switch (op) {
+        case EQUALS:
+            return sampleFraction(s, false);
+        case NOT_EQUALS:
+            return 1.0 - sampleFraction(s, false);
+        case LIKE:
+            return sampleFraction(s, true);
+        default:
+            return hist.estimateSelectivity(op, stringToInt(s));
+        }
     }
 
     /**
      * @return the average selectivity of this histogram.
-     * 
+     *
      *         This is not an indispensable method to implement the basic join
      *         optimization. It may be needed if you want to implement a more
      *         efficient optimization
@@ -89,4 +145,4 @@ public class StringHistogram {
     public double avgSelectivity() {
         return hist.avgSelectivity();
     }
-}
\ No newline at end of file
+}
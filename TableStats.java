@@ -1,17 +1,52 @@
 package simpledb;
 
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
- * query. 
- * 
- * This class is not needed in implementing lab1 and lab2.
+ * query.
+ * <p>
+ * Statistics are collected in a single pass over the table that counts the
+ * tuples and feeds every value to a histogram per column. The histograms
+ * keep bounded samples (see {@link IntHistogram}), so collection uses
+ * constant memory per column.
+ * <p>
+ * Large tables are not read in full: a random sample of pages is read, sized
+ * by {@link #setSampling}, and the tuple count is scaled up from it. The
+ * number of distinct values of each column is estimated from the sample
+ * with the GEE estimator, and also kept in a {@link HyperLogLog} sketch,
+ * which is exact up to its error bound when every page was read and which
+ * {@link #addTuple} keeps up to date as tuples are inserted.
+ * <p>
+ * Statistics are saved next to the table's data file, named by appending
+ * <code>.stats</code>, and reused by {@link #computeStatistics} as long as
+ * the data file has the same length and modification time.
+ * <p>
+ * {@link BufferPool} reports every inserted and deleted tuple, which updates
+ * the tuple count, histograms and sketches in place. Deletes can only be
+ * reflected in the count, and the distinct-value estimates of a sample do
+ * not scale with the table, so once more than {@link #ANALYZE_THRESHOLD}
+ * plus {@link #ANALYZE_SCALE_FACTOR} of the analyzed tuples have changed,
+ * the table is analyzed again in the background and its statistics
+ * replaced.
  */
-public class TableStats {
+public class TableStats implements Serializable {
+
+    private static final long serialVersionUID = 2L;
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
@@ -24,7 +59,7 @@ public class TableStats {
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
     }
-    
+
     public static void setStatsMap(HashMap<String,TableStats> s)
     {
         try {
@@ -47,18 +82,252 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Compute statistics for every table in the catalog, loading saved
+     * statistics where they are still valid. Tables are processed in
+     * parallel, one thread per processor.
+     */
     public static void computeStatistics() {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
 
         System.out.println("Computing table stats.");
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        List<Integer> ids = new ArrayList<Integer>();
+        List<Future<TableStats>> results = new ArrayList<Future<TableStats>>();
         while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            final int tableid = tableIt.next();
+            ids.add(tableid);
+            results.add(pool.submit(new java.util.concurrent.Callable<TableStats>() {
+                public TableStats call() {
+                    return loadOrCompute(tableid, IOCOSTPERPAGE);
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < ids.size(); i++)
+                setTableStats(Database.getCatalog().getTableName(ids.get(i)),
+                        results.get(i).get());
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
         }
         System.out.println("Done.");
     }
 
+    /**
+     * Return the saved statistics of a table if they are still valid, and
+     * otherwise compute and save them.
+     */
+    static TableStats loadOrCompute(int tableid, int ioCostPerPage) {
+        TableStats s = load(tableid, ioCostPerPage);
+        if (s == null) {
+            s = new TableStats(tableid, ioCostPerPage);
+            s.save();
+        }
+        return s;
+    }
+
+    /** @return the file that the statistics of a table are saved in */
+    static File statsFile(DbFile f) {
+        return new File(f.getFile().getPath() + ".stats");
+    }
+
+    /**
+     * Read the saved statistics of a table.
+     *
+     * @return the statistics, or null if there are none or the table has
+     *         changed since they were saved
+     */
+    static TableStats load(int tableid, int ioCostPerPage) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        File sf = statsFile(f);
+        if (!sf.exists())
+            return null;
+        try {
+            ObjectInputStream in = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(sf)));
+            try {
+                if (in.readLong() != f.getFile().length()
+                        || in.readLong() != f.getFile().lastModified())
+                    return null;
+                TableStats s = (TableStats) in.readObject();
+                if (s.tableid != tableid || s.ioCostPerPage != ioCostPerPage)
+                    return null;
+                return s;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /** Save these statistics next to the table's data file. */
+    void save() {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        File sf = statsFile(f);
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(sf)));
+            try {
+                out.writeLong(f.getFile().length());
+                out.writeLong(f.getFile().lastModified());
+                out.writeObject(this);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // statistics will simply be recomputed next time
+            sf.delete();
+        }
+    }
+
+    /** Changes to a table that never trigger a re-analyze by themselves. */
+    static final int ANALYZE_THRESHOLD = 500;
+
+    /** Fraction of the analyzed tuples that may change before re-analyzing. */
+    static final double ANALYZE_SCALE_FACTOR = 0.1;
+
+    private static final Set<Integer> analyzing = Collections
+            .newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    private static final ExecutorService analyzer = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TableStats analyzer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** @return the current statistics of a table, or null if there are none */
+    private static TableStats statsFor(int tableid) {
+        return getTableStats(Database.getCatalog().getTableName(tableid));
+    }
+
+    /**
+     * Called by the buffer pool after a tuple has been inserted into a table.
+     */
+    static void tupleInserted(int tableid, Tuple t) {
+        TableStats s = statsFor(tableid);
+        if (s != null && s.addTuple(t))
+            analyzeLater(tableid, s.ioCostPerPage);
+    }
+
+    /**
+     * Called by the buffer pool after a tuple has been deleted from a table.
+     */
+    static void tupleDeleted(int tableid, Tuple t) {
+        TableStats s = statsFor(tableid);
+        if (s != null && s.removeTuple(t))
+            analyzeLater(tableid, s.ioCostPerPage);
+    }
+
+    /**
+     * Recompute the statistics of a table on the background analyzer thread,
+     * unless that is already pending.
+     */
+    static void analyzeLater(final int tableid, final int ioCostPerPage) {
+        if (!analyzing.add(tableid))
+            return;
+        analyzer.execute(new Runnable() {
+            public void run() {
+                boolean again = false;
+                try {
+                    TableStats old = statsFor(tableid);
+                    long before = old == null ? 0 : old.netInserted();
+                    TableStats s = new TableStats(tableid, ioCostPerPage);
+                    s.save();
+                    setTableStats(Database.getCatalog().getTableName(tableid), s);
+                    // tuples inserted or deleted while the table was read may
+                    // or may not have been seen, so read it again
+                    again = old != null && old.netInserted() != before;
+                } catch (RuntimeException e) {
+                    // keep the old statistics; further changes retry
+                } finally {
+                    analyzing.remove(tableid);
+                }
+                if (again)
+                    analyzeLater(tableid, ioCostPerPage);
+            }
+        });
+    }
+
+    /** Sampled rows whose values are counted for distinct-value estimates. */
+    static final int DISTINCT_SAMPLE_SIZE = 100000;
+
+    private static volatile double sampleConfidence = 0.95;
+    private static volatile double sampleError = 0.02;
+
+    /**
+     * Configure how many pages are read when computing statistics. Enough
+     * pages are sampled that the fraction of tuples satisfying a predicate
+     * is estimated within maxError of its true value with the given
+     * confidence, treating pages as the sampling unit. A maxError of 0 reads
+     * every page.
+     *
+     * @param confidence the confidence level, e.g. 0.95
+     * @param maxError the maximum absolute error in a selectivity, e.g. 0.02
+     */
+    public static void setSampling(double confidence, double maxError) {
+        if (confidence <= 0 || confidence >= 1 || maxError < 0)
+            throw new IllegalArgumentException("bad sampling parameters");
+        sampleConfidence = confidence;
+        sampleError = maxError;
+    }
+
+    /**
+     * @return the number of pages to sample out of numPages: z^2 / (4 e^2)
+     *         pages for a proportion near 1/2, corrected for the finite
+     *         number of pages
+     */
+    static int samplePages(int numPages) {
+        if (sampleError == 0)
+            return numPages;
+        double z = normalQuantile(1 - (1 - sampleConfidence) / 2);
+        double m = z * z / (4 * sampleError * sampleError);
+        m = m / (1 + (m - 1) / Math.max(1, numPages));
+        return (int) Math.min(numPages, Math.ceil(m));
+    }
+
+    /**
+     * Inverse of the standard normal distribution function, by the
+     * rational approximation of Abramowitz and Stegun 26.2.23 (error below
+     * 4.5e-4).
+     */
+    static double normalQuantile(double p) {
+        double q = p < 0.5 ? p : 1 - p;
+        double t = Math.sqrt(-2 * Math.log(q));
+        double x = t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+                / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+        return p < 0.5 ? -x : x;
+    }
+
+    /**
+     * @return m distinct page numbers chosen uniformly from 0..numPages-1, in
+     *         increasing order so that they are read front to back
+     */
+    static int[] choosePages(int numPages, int m, Random rand) {
+        // Floyd's algorithm: O(m) time and space however large the table
+        java.util.HashSet<Integer> set = new java.util.HashSet<Integer>();
+        for (int j = numPages - m; j < numPages; j++) {
+            int t = rand.nextInt(j + 1);
+            set.add(set.contains(t) ? j : t);
+        }
+        int[] chosen = new int[set.size()];
+        int i = 0;
+        for (int p : set)
+            chosen[i++] = p;
+        java.util.Arrays.sort(chosen);
+        return chosen;
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -66,10 +335,23 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    private final int tableid;
+    private final int ioCostPerPage;
+    private int numPages;
+    private int numTuples;
+    private long[] distinct;
+    private HyperLogLog[] sketches;
+    private boolean fullScan;
+    private int analyzedTuples;
+    private long changes;
+    private long netInserted;
+    private IntHistogram[] intHists;
+    private StringHistogram[] stringHists;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
-     * 
+     *
      * @param tableid
      *            The table over which to compute statistics
      * @param ioCostPerPage
@@ -77,45 +359,191 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc td = f.getTupleDesc();
+        int n = td.numFields();
+        intHists = new IntHistogram[n];
+        stringHists = new StringHistogram[n];
+        sketches = new HyperLogLog[n];
+        for (int j = 0; j < n; j++) {
+            sketches[j] = new HyperLogLog();
+            if (td.getFieldType(j) == Type.INT_TYPE)
+                intHists[j] = new IntHistogram(NUM_HIST_BINS,
+                        Integer.MIN_VALUE, Integer.MAX_VALUE);
+            else
+                stringHists[j] = new StringHistogram(NUM_HIST_BINS);
+        }
+
+        // one pass over a random sample of the pages (all of them for small
+        // tables); the histograms sample the values they are given, so they
+        // stay the same size however large the table is.  Pages are read
+        // straight from the file, so that tables can be analyzed in parallel
+        // without contending for the buffer pool.  Pages that are cached
+        // there are used instead, since they may have unflushed changes.
+        numPages = f.numPages();
+        int[] pages = choosePages(numPages, samplePages(numPages),
+                new Random(tableid));
+        List<HashMap<Field, Integer>> freqs = new ArrayList<HashMap<Field, Integer>>();
+        for (int j = 0; j < n; j++)
+            freqs.add(new HashMap<Field, Integer>());
+        int sampledTuples = 0;
+        for (int p : pages) {
+            PageId pid = new HeapPageId(tableid, p);
+            Page pg = Database.getBufferPool().peekPage(pid);
+            if (pg == null)
+                pg = f.readPage(pid);
+            // cached pages are latched, since writers may be changing them
+            synchronized (pg) {
+                Iterator<Tuple> it = pg.iterator();
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    for (int j = 0; j < n; j++) {
+                        if (intHists[j] != null)
+                            intHists[j].addValue(((IntField) t.getField(j)).getValue());
+                        else
+                            stringHists[j].addValue(t.getField(j).toString());
+                        sketches[j].add(t.getField(j));
+                        if (sampledTuples < DISTINCT_SAMPLE_SIZE) {
+                            Integer c = freqs.get(j).get(t.getField(j));
+                            freqs.get(j).put(t.getField(j), c == null ? 1 : c + 1);
+                        }
+                    }
+                    sampledTuples++;
+                }
+            }
+        }
+
+        // scale the sample up to the whole table
+        fullScan = pages.length == numPages;
+        numTuples = pages.length == 0 ? 0
+                : (int) Math.round((double) sampledTuples * numPages / pages.length);
+        analyzedTuples = numTuples;
+        distinct = new long[n];
+        int freqRows = Math.min(sampledTuples, DISTINCT_SAMPLE_SIZE);
+        for (int j = 0; j < n; j++)
+            distinct[j] = estimateDistinct(freqs.get(j), freqRows, numTuples);
+    }
+
+    /**
+     * Guaranteed-Error Estimator (Charikar et al.) of the number of distinct
+     * values in a table from a sample of its rows:
+     * sqrt(N/n) * f1 + sum(j &gt;= 2) fj, where fj is the number of values that
+     * occur exactly j times in the sample. Values seen more than once are
+     * assumed to be all there is of their kind; singletons stand for the
+     * many values that were missed.
+     *
+     * @param freqs occurrences of each value in the sample
+     * @param n the number of sampled rows
+     * @param total the number of rows in the table
+     */
+    static long estimateDistinct(Map<Field, Integer> freqs, int n, long total) {
+        if (n == 0)
+            return 0;
+        long f1 = 0;
+        long rest = 0;
+        for (Integer c : freqs.values()) {
+            if (c == 1)
+                f1++;
+            else
+                rest++;
+        }
+        double d = Math.sqrt((double) Math.max(total, n) / n) * f1 + rest;
+        return Math.max(1, Math.min(Math.round(d), Math.max(total, n)));
+    }
+
+    /**
+     * @return the estimated number of distinct values of a field
+     */
+    public synchronized long numDistinct(int field) {
+        long hll = Math.min(sketches[field].estimate(), Math.max(1, numTuples));
+        // a sketch of a sample only counts the values in the sample, a lower
+        // bound on those in the table
+        return fullScan ? Math.max(1, hll) : Math.max(distinct[field], hll);
+    }
+
+    /**
+     * @return the distinct-value sketch of a field, e.g. to merge it with the
+     *         sketch of another partition of the same column
+     */
+    public HyperLogLog getSketch(int field) {
+        return sketches[field];
+    }
+
+    /**
+     * Update these statistics for a tuple inserted into the table.
+     *
+     * @return true if the table has changed enough since it was analyzed
+     *         that it should be analyzed again
+     */
+    public synchronized boolean addTuple(Tuple t) {
+        for (int j = 0; j < sketches.length; j++) {
+            if (intHists[j] != null)
+                intHists[j].addValue(((IntField) t.getField(j)).getValue());
+            else
+                stringHists[j].addValue(t.getField(j).toString());
+            sketches[j].add(t.getField(j));
+        }
+        numTuples++;
+        netInserted++;
+        return changed();
+    }
+
+    /**
+     * Update these statistics for a tuple deleted from the table. Only the
+     * tuple count can be updated; histograms and sketches are corrected when
+     * the table is analyzed again.
+     *
+     * @return true if the table has changed enough since it was analyzed
+     *         that it should be analyzed again
+     */
+    public synchronized boolean removeTuple(Tuple t) {
+        if (numTuples > 0)
+            numTuples--;
+        netInserted--;
+        return changed();
+    }
+
+    /** @return the number of tuples inserted less those deleted so far */
+    private synchronized long netInserted() {
+        return netInserted;
+    }
+
+    /** Count a change, and return true if there have been too many. */
+    private boolean changed() {
+        changes++;
+        return changes > ANALYZE_THRESHOLD + ANALYZE_SCALE_FACTOR * analyzedTuples;
     }
 
     /**
      * Estimates the cost of sequentially scanning the file, given that the cost
      * to read a page is costPerPageIO. You can assume that there are no seeks
      * and that no pages are in the buffer pool.
-     * 
+     *
      * Also, assume that your hard drive can only read entire pages at once, so
      * if the last page of the table only has one tuple on it, it's just as
      * expensive to read as a full page. (Most real hard drives can't
      * efficiently address regions smaller than a page at a time.)
-     * 
+     *
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        // some code goes here
-        return 0;
+        return (double) numPages * ioCostPerPage;
     }
 
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
-     * 
+     *
      * @param selectivityFactor
      *            The selectivity of any predicates over the table
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
-        // some code goes here
-        return 0;
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
+        return (int) (numTuples * selectivityFactor);
     }
 
     /**
@@ -128,15 +556,26 @@ public class TableStats {
      * tuple, of which we do not know the value of the field, return the
      * expected selectivity. You may estimate this value from the histograms.
      * */
-    public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+    public synchronized double avgSelectivity(int field, Predicate.Op op) {
+        double eq = intHists[field] != null ? intHists[field].avgSelectivity()
+                : stringHists[field].avgSelectivity();
+        switch (op) {
+        case EQUALS:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        case LIKE:
+            return intHists[field] != null ? eq : 1.0;
+        default:
+            // a range predicate on an unknown value selects half on average
+            return 0.5;
+        }
     }
 
     /**
      * Estimate the selectivity of predicate <tt>field op constant</tt> on the
      * table.
-     * 
+     *
      * @param field
      *            The field over which the predicate ranges
      * @param op
@@ -146,17 +585,18 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // some code goes here
-        return 1.0;
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+        if (intHists[field] != null)
+            return intHists[field].estimateSelectivity(op,
+                    ((IntField) constant).getValue());
+        return stringHists[field].estimateSelectivity(op, constant.toString());
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
-        // some code goes here
-        return 0;
+    public synchronized int totalTuples() {
+        return numTuples;
     }
 
 }
@@ -25,6 +25,16 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction running as a read-only snapshot, which sees
+     * the database as of now and takes no locks
+     * @see BufferPool#beginSnapshot
+     */
+    public void startSnapshot() {
+        start();
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -45,10 +55,14 @@ public class Transaction {
         if (started) {
             //write commit / abort records
             if (abort) {
+                //put back the pages this transaction dirtied; the ones
+                //written out meanwhile are rolled back from the log
+                Database.getBufferPool().rollbackPages(tid);
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //log the changes to the pages this transaction dirtied;
+                //the pages themselves are written out later
+                Database.getBufferPool().logPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
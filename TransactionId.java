@@ -22,6 +22,8 @@ public class TransactionId implements Serializable {
     }
 
     public boolean equals(Object tid) {
+        if (!(tid instanceof TransactionId))
+            return false;
         return ((TransactionId) tid).myid == myid;
     }
 
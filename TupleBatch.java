@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * TupleBatch holds up to {@link #BATCH_SIZE} rows of a relation in columnar
+ * form: one <code>int[]</code> per {@link Type#INT_TYPE} column and one
+ * <code>String[]</code> per string column. A selection vector lists the
+ * positions of the rows that are still live, so that operators such as
+ * {@link BatchFilter} can discard rows without moving any column data.
+ * <p>
+ * Batches are produced and consumed by {@link BatchIterator}s.
+ *
+ * @see BatchIterator
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of rows in a batch. */
+    public static final int BATCH_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] intCols;
+    private final String[][] stringCols;
+    private final RecordId[] rids;
+
+    private int size;
+    private final int[] sel;
+    private int selSize;
+    private boolean dense;
+
+    /**
+     * Create an empty batch with the specified schema and {@link #BATCH_SIZE}
+     * rows of capacity.
+     *
+     * @param td
+     *            the schema of the rows in this batch
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, BATCH_SIZE);
+    }
+
+    /**
+     * Create an empty batch with the specified schema and capacity.
+     *
+     * @param td
+     *            the schema of the rows in this batch
+     * @param capacity
+     *            the maximum number of rows in this batch
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.intCols = new int[td.numFields()][];
+        this.stringCols = new String[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                intCols[i] = new int[capacity];
+            else
+                stringCols[i] = new String[capacity];
+        }
+        this.rids = new RecordId[capacity];
+        this.sel = new int[capacity];
+        clear();
+    }
+
+    /**
+     * Construct a batch that shares its column vectors with another batch;
+     * used by {@link #project}.
+     */
+    private TupleBatch(TupleDesc td, TupleBatch src, int[] fields) {
+        this.td = td;
+        this.capacity = src.capacity;
+        this.intCols = new int[fields.length][];
+        this.stringCols = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            intCols[i] = src.intCols[fields[i]];
+            stringCols[i] = src.stringCols[fields[i]];
+        }
+        this.rids = src.rids;
+        this.sel = src.sel;
+        this.size = src.size;
+        this.selSize = src.selSize;
+        this.dense = src.dense;
+    }
+
+    /**
+     * @return The TupleDesc representing the schema of this batch.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** Empty this batch so that it can be refilled. */
+    public void clear() {
+        size = 0;
+        selSize = 0;
+        dense = true;
+    }
+
+    /** @return true if no more rows can be appended to this batch. */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** @return the number of physical rows stored in this batch. */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of rows that are selected (live) in this batch. */
+    public int numSelected() {
+        return selSize;
+    }
+
+    /**
+     * @return true if every physical row in the batch is selected, in which
+     *         case the selection vector is the identity and operators may
+     *         iterate over the column vectors directly.
+     */
+    public boolean isDense() {
+        return dense;
+    }
+
+    /**
+     * @return the selection vector; only the first {@link #numSelected()}
+     *         entries are meaningful.
+     */
+    public int[] getSelection() {
+        return sel;
+    }
+
+    /**
+     * Set the number of selected rows after an operator has rewritten the
+     * prefix of the selection vector in place.
+     *
+     * @param n
+     *            the new number of selected rows
+     */
+    public void setNumSelected(int n) {
+        if (n != size)
+            dense = false;
+        selSize = n;
+    }
+
+    /**
+     * @return the vector for the ith column, which must be of type
+     *         {@link Type#INT_TYPE}
+     */
+    public int[] getIntColumn(int i) {
+        return intCols[i];
+    }
+
+    /**
+     * @return the vector for the ith column, which must be a string column
+     */
+    public String[] getStringColumn(int i) {
+        return stringCols[i];
+    }
+
+    /**
+     * Append a tuple to the end of this batch and select it.
+     *
+     * @param t
+     *            the tuple to append; its schema must match this batch
+     * @throws IllegalStateException
+     *             if the batch is full
+     */
+    public void addTuple(Tuple t) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        int row = size++;
+        for (int i = 0; i < intCols.length; i++) {
+            if (intCols[i] != null)
+                intCols[i][row] = ((IntField) t.getField(i)).getValue();
+            else
+                stringCols[i][row] = t.getField(i).toString();
+        }
+        rids[row] = t.getRecordId();
+        sel[selSize++] = row;
+    }
+
+    /**
+     * Materialize the kth selected row of this batch as a Tuple.
+     *
+     * @param k
+     *            index into the selection vector
+     * @return a new Tuple holding the values of that row
+     */
+    public Tuple getTuple(int k) {
+        int row = sel[k];
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < intCols.length; i++) {
+            if (intCols[i] != null)
+                t.setField(i, new IntField(intCols[i][row]));
+            else if (td.getFieldType(i) == Type.VARCHAR_TYPE)
+                t.setField(i, new VarStringField(stringCols[i][row]));
+            else
+                t.setField(i, new StringField(stringCols[i][row],
+                        Type.STRING_LEN));
+        }
+        t.setRecordId(rids[row]);
+        return t;
+    }
+
+    /**
+     * Return a view of this batch containing only the specified columns. The
+     * column vectors and the selection vector are shared, not copied.
+     *
+     * @param fields
+     *            the indexes of the columns to keep, in output order
+     * @param td
+     *            the schema of the projected batch
+     */
+    public TupleBatch project(int[] fields, TupleDesc td) {
+        return new TupleBatch(td, this, fields);
+    }
+}
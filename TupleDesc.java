@@ -151,6 +151,18 @@ public class TupleDesc implements Serializable {
 
     }
 
+    /**
+     * @return true if every field of this TupleDesc has a fixed length, so
+     *         that tuples can be stored in fixed-size slots.
+     * @see Type#isFixedLength
+     */
+    public boolean isFixedSize() {
+        for (int i = 0; i < tdItems.length; i++)
+            if (!tdItems[i].fieldType.isFixedLength())
+                return false;
+        return true;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,65 @@
+package simpledb;
+
+/**
+ * Adapter that exposes a tuple-at-a-time {@link DbIterator} as a
+ * {@link BatchIterator} by copying its tuples into column vectors.
+ */
+public class TupleToBatchIterator implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int batchSize;
+    private transient TupleBatch batch;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the iterator to read tuples from
+     */
+    public TupleToBatchIterator(DbIterator child) {
+        this(child, TupleBatch.BATCH_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the iterator to read tuples from
+     * @param batchSize
+     *            the number of rows per batch
+     */
+    public TupleToBatchIterator(DbIterator child, int batchSize) {
+        this.child = child;
+        this.batchSize = batchSize;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = new TupleBatch(child.getTupleDesc(), batchSize);
+    }
+
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        if (batch == null)
+            throw new IllegalStateException("Iterator not yet open");
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.addTuple(child.next());
+        return batch.size() == 0 ? null : batch;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+        batch = null;
+    }
+}
@@ -42,10 +42,48 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+    }, VARCHAR_TYPE() {
+        /**
+         * Variable-length strings have no fixed size; this is the largest
+         * number of bytes a value occupies inside a record, since longer
+         * values are moved to overflow pages by {@link SlottedHeapPage}.
+         */
+        @Override
+        public int getLen() {
+            return SlottedHeapPage.INLINE_LIMIT + 4;
+        }
+
+        @Override
+        public boolean isFixedLength() {
+            return false;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                int len = dis.readInt();
+                if (len < 0)
+                    throw new ParseException("value is stored out of line", 0);
+                byte bs[] = new byte[len];
+                dis.readFully(bs);
+                return new VarStringField(new String(bs, "UTF-8"));
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
 
+  /**
+   * @return true if every value of this type occupies exactly getLen()
+   *   bytes, so that the type can be stored in fixed-size slots such as
+   *   those of a {@link HeapPage}.
+   */
+    public boolean isFixedLength() {
+        return true;
+    }
+
   /**
    * @return the number of bytes required to store a field of this type.
    */
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * Instance of Field that stores a String of any length. Unlike
+ * {@link StringField}, values are not padded or truncated: a VarStringField
+ * serializes to a four byte length followed by the UTF-8 bytes of the string.
+ * Values of this type are stored in {@link SlottedHeapFile}s.
+ *
+ * @see Type#VARCHAR_TYPE
+ */
+public class VarStringField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String value;
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param s
+     *            The value of this field.
+     */
+    public VarStringField(String s) {
+        this.value = s;
+    }
+
+    public String toString() {
+        return value;
+    }
+
+    public int hashCode() {
+        return value.hashCode();
+    }
+
+    /**
+     * As for compare, a VarStringField equals any string-valued field with the
+     * same value.
+     */
+    public boolean equals(Object field) {
+        return (field instanceof VarStringField || field instanceof StringField)
+                && field.toString().equals(value);
+    }
+
+    /**
+     * @return the UTF-8 encoding of this string, as written by serialize
+     */
+    public byte[] getBytes() {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write this string to dos: four bytes of length, followed by the UTF-8
+     * bytes of the string.
+     *
+     * @param dos
+     *            Where the string is written
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        byte[] b = getBytes();
+        dos.writeInt(b.length);
+        dos.write(b);
+    }
+
+    /**
+     * Compare the specified field to the value of this Field. Return semantics
+     * are as specified by Field.compare; val may be any string-valued field.
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+
+        String other = val.toString();
+        int cmpVal = value.compareTo(other);
+
+        switch (op) {
+        case EQUALS:
+            return cmpVal == 0;
+
+        case NOT_EQUALS:
+            return cmpVal != 0;
+
+        case GREATER_THAN:
+            return cmpVal > 0;
+
+        case GREATER_THAN_OR_EQ:
+            return cmpVal >= 0;
+
+        case LESS_THAN:
+            return cmpVal < 0;
+
+        case LESS_THAN_OR_EQ:
+            return cmpVal <= 0;
+
+        case LIKE:
+            return value.indexOf(other) >= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the Type for this Field
+     */
+    public Type getType() {
+        return Type.VARCHAR_TYPE;
+    }
+}
@@ -0,0 +1,205 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the recent versions of the tuples of HeapFiles, so
+ * that snapshot transactions can read the database as it was when they
+ * started without taking locks (multi-version concurrency control).
+ * <p>
+ * Each change to a slot pushes a version onto the slot's chain. A version
+ * is stamped with the commit timestamp of the transaction that wrote it
+ * when that transaction commits, and is removed if it aborts. A snapshot
+ * started at timestamp s sees, for each slot, the newest version stamped
+ * with a timestamp no greater than s. Slots without a chain have not
+ * changed since every running snapshot started, so the page holds their
+ * visible version.
+ * <p>
+ * Versions no running snapshot can see any more are dropped when the
+ * writer commits and when a snapshot ends.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** The timestamp of versions whose writer has not committed yet */
+    private static final long PENDING = Long.MAX_VALUE;
+
+    private static final class Version {
+        volatile long ts;
+        final TransactionId writer;
+        /** the tuple in the slot, or null if the slot is empty */
+        volatile Tuple tuple;
+        volatile Version older;
+
+        Version(long ts, TransactionId writer, Tuple tuple, Version older) {
+            this.ts = ts;
+            this.writer = writer;
+            this.tuple = tuple;
+            this.older = older;
+        }
+    }
+
+    private final ConcurrentHashMap<RecordId, Version> chains =
+            new ConcurrentHashMap<RecordId, Version>();
+    /** The slots each running writer has changed */
+    private final ConcurrentHashMap<TransactionId, List<RecordId>> written =
+            new ConcurrentHashMap<TransactionId, List<RecordId>>();
+    /** The timestamps of the running snapshots */
+    private final ConcurrentHashMap<TransactionId, Long> snapshots =
+            new ConcurrentHashMap<TransactionId, Long>();
+    /** The timestamp of the latest commit; only advanced under this */
+    private volatile long clock = 0;
+
+    /**
+     * Start a snapshot for a transaction, which sees the changes of the
+     * transactions that have committed so far.
+     *
+     * @return the timestamp of the snapshot
+     */
+    public synchronized long begin(TransactionId tid) {
+        // under the monitor, so that a commit cannot drop the versions the
+        // snapshot sees between reading the clock and registering it
+        long s = clock;
+        snapshots.put(tid, s);
+        return s;
+    }
+
+    /** @return the timestamp of the transaction's snapshot, or null if it has none */
+    public Long snapshot(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /**
+     * Record that a transaction changes a slot. Must be called with the
+     * page latched, and with the slot locked by the transaction.
+     *
+     * @param before the tuple in the slot before the change, or null
+     * @param after the tuple in the slot after the change, or null
+     */
+    public void changed(TransactionId tid, RecordId rid, Tuple before,
+            Tuple after) {
+        while (true) {
+            Version head = chains.get(rid);
+            if (head == null) {
+                // the slot has not changed since every snapshot started
+                head = new Version(0, null, before, null);
+                if (chains.putIfAbsent(rid, head) != null)
+                    continue;
+            }
+            if (head.ts == PENDING && head.writer.equals(tid)) {
+                head.tuple = after;
+                return;
+            }
+            if (chains.replace(rid, head, new Version(PENDING, tid, after, head)))
+                break;
+            // an old chain was just dropped; start a new one
+        }
+        List<RecordId> rids = written.get(tid);
+        if (rids == null) {
+            rids = new ArrayList<RecordId>();
+            written.put(tid, rids);
+        }
+        rids.add(rid);
+    }
+
+    /**
+     * Return the version of a slot that a snapshot sees. Must be called
+     * with the page latched.
+     *
+     * @param current the tuple in the slot on the page, or null
+     * @return the tuple the snapshot sees in the slot, or null
+     */
+    public Tuple visible(RecordId rid, long snapshot, Tuple current) {
+        Version v = chains.get(rid);
+        if (v == null)
+            return current;
+        while (v != null && v.ts > snapshot)
+            v = v.older;
+        if (v == null || v.tuple == null)
+            return null;
+        if (v.tuple == current)
+            return current;
+        // an old version, which is not on the page any more
+        Tuple t = new Tuple(v.tuple.getTupleDesc());
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+            t.setField(i, v.tuple.getField(i));
+        t.setRecordId(rid);
+        return t;
+    }
+
+    /** @return true if no slot has more than one version */
+    public boolean isEmpty() {
+        return chains.isEmpty();
+    }
+
+    /** Make the versions a transaction wrote visible to new snapshots. */
+    public void commit(TransactionId tid) {
+        List<RecordId> rids = written.remove(tid);
+        if (rids == null)
+            return;
+        synchronized (this) {
+            long ts = clock + 1;
+            for (RecordId rid : rids) {
+                Version head = chains.get(rid);
+                if (head != null && head.ts == PENDING && head.writer.equals(tid))
+                    head.ts = ts;
+            }
+            // publish only once every version is stamped
+            clock = ts;
+        }
+        long oldest = oldestSnapshot();
+        for (RecordId rid : rids)
+            prune(rid, oldest);
+    }
+
+    /** Drop the versions a transaction wrote. */
+    public void abort(TransactionId tid) {
+        List<RecordId> rids = written.remove(tid);
+        if (rids == null)
+            return;
+        long oldest = oldestSnapshot();
+        for (RecordId rid : rids) {
+            Version head = chains.get(rid);
+            if (head == null || head.ts != PENDING || !head.writer.equals(tid))
+                continue;
+            if (head.older == null)
+                chains.remove(rid, head);
+            else if (chains.replace(rid, head, head.older))
+                prune(rid, oldest);
+        }
+    }
+
+    /** End a transaction's snapshot, and drop the versions only it could see. */
+    public void end(TransactionId tid) {
+        if (snapshots.remove(tid) == null)
+            return;
+        long oldest = oldestSnapshot();
+        for (RecordId rid : chains.keySet())
+            prune(rid, oldest);
+    }
+
+    private long oldestSnapshot() {
+        long oldest = PENDING;
+        for (long s : snapshots.values())
+            oldest = Math.min(oldest, s);
+        return oldest;
+    }
+
+    /**
+     * Drop the versions of a slot older than the one the oldest snapshot
+     * sees, and the whole chain if that is the version on the page.
+     */
+    private void prune(RecordId rid, long oldest) {
+        Version head = chains.get(rid);
+        Version v = head;
+        while (v != null && (v.ts == PENDING || v.ts > oldest))
+            v = v.older;
+        if (v == null)
+            return;
+        v.older = null;
+        if (v == head)
+            chains.remove(rid, head);
+    }
+}
@@ -0,0 +1,317 @@
+package simpledb;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * ZoneMap keeps, for every page of a {@link HeapFile}, the minimum and maximum
+ * value of each column among the tuples on that page. A scan with a pushed
+ * down predicate consults the zone map to skip pages whose range cannot
+ * satisfy it, without reading them.
+ * <p>
+ * Values are summarized as longs that order the same way as the values
+ * themselves: INT_TYPE values are stored as is, and strings are stored as
+ * their first {@link #PREFIX_LEN} bytes, so string bounds are only bounds
+ * on prefixes. A page without tuples has min &gt; max and matches nothing.
+ * <p>
+ * The bounds for a page are widened as tuples are inserted into it and are
+ * recomputed exactly from the page contents whenever the page is written to
+ * disk, so deletes only narrow them once the page is flushed. A page written
+ * while a transaction still holds a write lock on it only has its bounds
+ * widened, since its uncommitted deletes may yet be rolled back. Between
+ * these, the bounds are always a superset of the values on the page.
+ * <p>
+ * Zone maps are persisted in a sidecar file next to the data file, named by
+ * appending <code>.zm</code>, when they are built and at every checkpoint
+ * (see {@link #flush}) rather than on every page write. The sidecar records
+ * the length and modification time of the data file when it was last
+ * saved; if they do not match the data file, or the sidecar is missing, the
+ * zone map is rebuilt by reading every page.
+ */
+public class ZoneMap {
+
+    /** Number of leading bytes of a string that are kept in the bounds. */
+    public static final int PREFIX_LEN = 8;
+
+    static final int MAGIC = 0x5a4d4150;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+    private final HeapFile hf;
+    private final File sidecar;
+    private final TupleDesc td;
+    private final int numFields;
+
+    private long[] mins = new long[0];
+    private long[] maxs = new long[0];
+    private int numPages = -1;
+    // whether pages were written since the sidecar was saved, and how many
+    // writes of the data file have yet to call pageWritten
+    private boolean dirty = false;
+    private int writing = 0;
+
+    /**
+     * @param hf the file this zone map summarizes
+     */
+    public ZoneMap(HeapFile hf) {
+        this.hf = hf;
+        this.sidecar = new File(hf.getFile().getPath() + ".zm");
+        this.td = hf.getTupleDesc();
+        this.numFields = td.numFields();
+    }
+
+    /**
+     * Returns the sidecar file that persists this zone map.
+     */
+    public File getFile() {
+        return sidecar;
+    }
+
+    /** @return the key of a field value, ordered like the values */
+    static long key(Field f) {
+        if (f.getType() == Type.INT_TYPE)
+            return ((IntField) f).getValue();
+        return prefixKey(PredicateCompiler.encode(f.toString()), 0,
+                f.toString().length());
+    }
+
+    /**
+     * @return the first PREFIX_LEN bytes of a string as a long whose signed
+     *         order is the unsigned lexicographic order of the bytes
+     */
+    static long prefixKey(byte[] b, int off, int len) {
+        long k = 0;
+        for (int i = 0; i < PREFIX_LEN; i++)
+            k = (k << 8) | (i < len ? (b[off + i] & 0xff) : 0);
+        return k ^ Long.MIN_VALUE;
+    }
+
+    private void ensurePages(int n) {
+        if (n <= numPages)
+            return;
+        if (n * numFields > mins.length) {
+            int cap = Math.max(n, numPages * 2) * numFields;
+            long[] mn = new long[cap];
+            long[] mx = new long[cap];
+            System.arraycopy(mins, 0, mn, 0, mins.length);
+            System.arraycopy(maxs, 0, mx, 0, maxs.length);
+            mins = mn;
+            maxs = mx;
+        }
+        for (int i = numPages * numFields; i < n * numFields; i++) {
+            mins[i] = Long.MAX_VALUE;
+            maxs[i] = Long.MIN_VALUE;
+        }
+        numPages = n;
+    }
+
+    /** Load the sidecar, or rebuild it if it is missing or stale. */
+    private void load() {
+        if (numPages >= 0)
+            return;
+        numPages = 0;
+        File data = hf.getFile();
+        if (sidecar.exists()) {
+            try {
+                DataInputStream dis = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(sidecar)));
+                try {
+                    if (dis.readInt() == MAGIC && dis.readInt() == numFields
+                            && dis.readLong() == data.length()
+                            && dis.readLong() == data.lastModified()) {
+                        int n = (int) ((sidecar.length() - HEADER_SIZE) / (16 * numFields));
+                        ensurePages(n);
+                        for (int i = 0; i < n * numFields; i++) {
+                            mins[i] = dis.readLong();
+                            maxs[i] = dis.readLong();
+                        }
+                        return;
+                    }
+                } finally {
+                    dis.close();
+                }
+            } catch (IOException e) {
+                // fall through and rebuild
+            }
+        }
+        numPages = 0;
+        int n = hf.numPages();
+        ensurePages(n);
+        for (int i = 0; i < n; i++)
+            summarize(i, hf.readPage(new HeapPageId(hf.getId(), i)).getPageData(), true);
+        dirty = true;
+        flush();
+    }
+
+    /** Write the whole zone map to the sidecar. */
+    private void save() {
+        try {
+            DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(sidecar)));
+            try {
+                writeHeader(dos);
+                for (int i = 0; i < numPages * numFields; i++) {
+                    dos.writeLong(mins[i]);
+                    dos.writeLong(maxs[i]);
+                }
+            } finally {
+                dos.close();
+            }
+        } catch (IOException e) {
+            // the zone map is only a hint; it will be rebuilt next time
+            sidecar.delete();
+        }
+    }
+
+    private void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(numFields);
+        out.writeLong(hf.getFile().length());
+        out.writeLong(hf.getFile().lastModified());
+    }
+
+    /**
+     * Recompute the bounds of a page from its serialized bytes, or only
+     * widen them to include its values if not exact.
+     */
+    private void summarize(int pageNo, byte[] page, boolean exact) {
+        int base = pageNo * numFields;
+        for (int j = 0; exact && j < numFields; j++) {
+            mins[base + j] = Long.MAX_VALUE;
+            maxs[base + j] = Long.MIN_VALUE;
+        }
+        int tupleSize = td.getSize();
+        int slots = (BufferPool.getPageSize() * 8) / (tupleSize * 8 + 1);
+        int headerSize = (slots + 7) / 8;
+        for (int i = 0; i < slots; i++) {
+            if ((page[i / 8] & (1 << (i % 8))) == 0)
+                continue;
+            int off = headerSize + i * tupleSize;
+            for (int j = 0; j < numFields; j++) {
+                long k;
+                if (td.getFieldType(j) == Type.INT_TYPE)
+                    k = PredicateCompiler.readInt(page, off);
+                else
+                    k = prefixKey(page, off + 4, Math.min(
+                            PredicateCompiler.readInt(page, off), PREFIX_LEN));
+                if (k < mins[base + j])
+                    mins[base + j] = k;
+                if (k > maxs[base + j])
+                    maxs[base + j] = k;
+                off += td.getFieldType(j).getLen();
+            }
+        }
+    }
+
+    /**
+     * Widen the bounds of a page to include a tuple being inserted into it.
+     */
+    public synchronized void include(int pageNo, Tuple t) {
+        load();
+        ensurePages(pageNo + 1);
+        int base = pageNo * numFields;
+        for (int j = 0; j < numFields; j++) {
+            long k = key(t.getField(j));
+            if (k < mins[base + j])
+                mins[base + j] = k;
+            if (k > maxs[base + j])
+                maxs[base + j] = k;
+        }
+    }
+
+    /**
+     * Note that a page of the data file is about to be written; the writer
+     * calls {@link #pageWritten} once it is, whether or not the write
+     * succeeds.
+     */
+    public synchronized void pageWriting() {
+        writing++;
+    }
+
+    /**
+     * Recompute the bounds of a page that has just been written to the data
+     * file. They are persisted by the next {@link #flush}.
+     *
+     * @param pageNo the page that was written
+     * @param page the bytes that were written
+     * @param exact true to narrow the bounds to the values on the page,
+     *        false to only widen them to include those values
+     */
+    public synchronized void pageWritten(int pageNo, byte[] page, boolean exact) {
+        load();
+        ensurePages(pageNo + 1);
+        summarize(pageNo, page, exact);
+        if (writing > 0)
+            writing--;
+        dirty = true;
+    }
+
+    /**
+     * Save the zone map to the sidecar if pages were written since it was
+     * last saved. Nothing is saved while a write of the data file is under
+     * way, since the sidecar would then match a data file whose new page
+     * it does not cover; the next flush saves it instead. Bounds a crash
+     * loses are rebuilt, since the sidecar then no longer matches the data
+     * file.
+     */
+    public synchronized void flush() {
+        if (dirty && writing == 0) {
+            save();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Returns false if no tuple on the page can satisfy all of the
+     * predicates, and true otherwise.
+     *
+     * @param pageNo the page to check
+     * @param preds predicates over the file's TupleDesc, ANDed together
+     */
+    public synchronized boolean mightMatch(int pageNo, List<Predicate> preds) {
+        load();
+        if (pageNo >= numPages)
+            return true;
+        int base = pageNo * numFields;
+        if (numFields > 0 && mins[base] > maxs[base])
+            return false;
+        for (Predicate p : preds) {
+            long min = mins[base + p.getField()];
+            long max = maxs[base + p.getField()];
+            long k = key(p.getOperand());
+            boolean isInt = p.getOperand().getType() == Type.INT_TYPE;
+            switch (p.getOp()) {
+            case EQUALS:
+                if (k < min || k > max)
+                    return false;
+                break;
+            case LIKE:
+                // LIKE on strings is substring matching; nothing to prune
+                if (isInt && (k < min || k > max))
+                    return false;
+                break;
+            case NOT_EQUALS:
+                if (isInt && min == k && max == k)
+                    return false;
+                break;
+            case GREATER_THAN:
+                // a string sharing the operand's prefix may still be greater
+                if (isInt ? max <= k : max < k)
+                    return false;
+                break;
+            case GREATER_THAN_OR_EQ:
+                if (max < k)
+                    return false;
+                break;
+            case LESS_THAN:
+                if (isInt ? min >= k : min > k)
+                    return false;
+                break;
+            case LESS_THAN_OR_EQ:
+                if (min > k)
+                    return false;
+                break;
+            }
+        }
+        return true;
+    }
+}